@@ -0,0 +1,59 @@
+//        AsyncQueueBenchmark.java
+//        ~~~~~~~~~
+//        This module implements the AsyncQueueBenchmark class.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures handing async publishes to the queue of a client and draining
+ * them in batches. The client uses a transport that does no network I/O so
+ * that only the queue and batching overhead is measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgs = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Benchmark)
+public class AsyncQueueBenchmark {
+    private static final int PUBLISHES = 1000;
+
+    @Param({"1", "10"})
+    public int channelCount;
+
+    @Param({"1", "4"})
+    public int concurrency;
+
+    private PubControlClient client;
+    private Item item;
+    private List<String> channels;
+
+    @Setup
+    public void setUp() {
+        this.client = new PubControlClient("http://localhost",
+                new BenchmarkData.NullTransport());
+        this.client.setAsyncConcurrency(this.concurrency);
+        this.item = BenchmarkData.item(256);
+        this.channels = BenchmarkData.channels(this.channelCount);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.client.finish();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PUBLISHES)
+    public void publishAsyncAndFinish() {
+        for (int n = 0; n < PUBLISHES; n++)
+            this.client.publishAsync(this.channels, this.item, null);
+        this.client.finish();
+    }
+}
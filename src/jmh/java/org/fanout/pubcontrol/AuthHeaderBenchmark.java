@@ -0,0 +1,48 @@
+//        AuthHeaderBenchmark.java
+//        ~~~~~~~~~
+//        This module implements the AuthHeaderBenchmark class.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures generating the authorization header of a publish request with
+ * JWT authentication, both when the cached token is reused and when it has
+ * to be signed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgs = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Benchmark)
+public class AuthHeaderBenchmark {
+    private final AuthHeaderCache cache = new AuthHeaderCache();
+    private final Map<String, Object> claims = new HashMap<String, Object>();
+    private final byte[] key = "benchmark-key".getBytes(StandardCharsets.UTF_8);
+
+    @Setup
+    public void setUp() {
+        this.claims.put("iss", "benchmark");
+        this.cache.setJwt(this.claims, this.key);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String cachedJwt() {
+        return this.cache.get();
+    }
+
+    @Benchmark
+    public String signJwt() {
+        this.cache.setJwt(this.claims, this.key);
+        return this.cache.get();
+    }
+}
@@ -0,0 +1,140 @@
+//        BenchmarkData.java
+//        ~~~~~~~~~
+//        This module implements the BenchmarkData class.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import com.google.gson.stream.JsonWriter;
+import com.sun.net.httpserver.*;
+
+/**
+ * Shared fixtures for the benchmarks. Payloads are generated from a fixed
+ * seed so that every run publishes exactly the same bytes.
+ */
+class BenchmarkData {
+    private static final long SEED = 42;
+
+    /**
+     * Create an item with a single http-stream format whose content is the
+     * specified number of random ASCII characters.
+     */
+    static Item item(int itemSize) {
+        final String body = content(itemSize);
+        List<Format> formats = new ArrayList<Format>();
+        formats.add(new Format() {
+            public String name() {
+                return "http-stream";
+            }
+
+            public Object export() {
+                Map<String, Object> export = new HashMap<String, Object>();
+                export.put("content", body);
+                return export;
+            }
+        });
+        return new Item(formats, "id", "prev-id");
+    }
+
+    /**
+     * Create the same item as the item method, with a format that writes
+     * itself as JSON instead of being exported.
+     */
+    static Item streamingItem(int itemSize) {
+        final String body = content(itemSize);
+        List<Format> formats = new ArrayList<Format>();
+        formats.add(new StreamingFormat() {
+            public String name() {
+                return "http-stream";
+            }
+
+            public Object export() {
+                Map<String, Object> export = new HashMap<String, Object>();
+                export.put("content", body);
+                return export;
+            }
+
+            public void writeJson(JsonWriter writer) throws IOException {
+                writer.beginObject();
+                writer.name("content").value(body);
+                writer.endObject();
+            }
+        });
+        return new Item(formats, "id", "prev-id");
+    }
+
+    private static String content(int itemSize) {
+        Random random = new Random(SEED);
+        char[] content = new char[itemSize];
+        for (int n = 0; n < itemSize; n++)
+            content[n] = (char)('a' + random.nextInt(26));
+        return new String(content);
+    }
+
+    /**
+     * Create the specified number of channel names.
+     */
+    static List<String> channels(int channelCount) {
+        List<String> channels = new ArrayList<String>();
+        for (int n = 0; n < channelCount; n++)
+            channels.add("channel-" + n);
+        return channels;
+    }
+
+    /**
+     * A transport that discards requests and reports success without any
+     * network I/O, used to isolate the client from the network.
+     */
+    static class NullTransport implements Transport {
+        public TransportResponse send(URI uri, Map<String, String> headers,
+                List<ByteBuffer> body) {
+            return new TransportResponse(200,
+                    Collections.<String, String>emptyMap(), "");
+        }
+    }
+
+    /**
+     * An in-process EPCP endpoint that reads each publish request and
+     * responds with 200.
+     */
+    static class StubServer {
+        private final HttpServer server;
+        private final ExecutorService executor;
+
+        StubServer() throws IOException {
+            this.server = HttpServer.create(
+                    new InetSocketAddress("127.0.0.1", 0), 0);
+            this.server.createContext("/publish/", new HttpHandler() {
+                public void handle(HttpExchange exchange) throws IOException {
+                    InputStream in = exchange.getRequestBody();
+                    byte[] buf = new byte[8192];
+                    while (in.read(buf) >= 0) { }
+                    exchange.sendResponseHeaders(200, -1);
+                    exchange.close();
+                }
+            });
+            this.executor = Executors.newCachedThreadPool();
+            this.server.setExecutor(this.executor);
+            this.server.start();
+        }
+
+        String uri() {
+            return "http://127.0.0.1:" + this.server.getAddress().getPort();
+        }
+
+        void stop() {
+            this.server.stop(0);
+            this.executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+//        EncodeBenchmark.java
+//        ~~~~~~~~~
+//        This module implements the EncodeBenchmark class.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures exporting an item and building the JSON body of a publish
+ * request from it for a varying number of channels and item sizes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgs = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Benchmark)
+public class EncodeBenchmark {
+    @Param({"1", "10"})
+    public int channelCount;
+
+    @Param({"64", "4096"})
+    public int itemSize;
+
+    private Item item;
+    private Item streamingItem;
+    private List<String> channels;
+    private EncodedItem encoded;
+
+    @Setup
+    public void setUp() {
+        this.item = BenchmarkData.item(this.itemSize);
+        this.streamingItem = BenchmarkData.streamingItem(this.itemSize);
+        this.channels = BenchmarkData.channels(this.channelCount);
+        this.encoded = ItemEncoder.encode(this.item);
+    }
+
+    @Benchmark
+    public Map<String, Object> exportItem() {
+        return this.item.export();
+    }
+
+    @Benchmark
+    public EncodedItem encodeItem() {
+        return ItemEncoder.encode(this.item);
+    }
+
+    @Benchmark
+    public EncodedItem encodeStreamingItem() {
+        return ItemEncoder.encode(this.streamingItem);
+    }
+
+    @Benchmark
+    public List<ByteBuffer> buildContent() {
+        return ItemEncoder.buildContent(Collections.singletonList(
+                ItemEncoder.encodeChannels(this.encoded, this.channels)));
+    }
+
+    @Benchmark
+    public List<ByteBuffer> encodeAndBuildContent() {
+        return ItemEncoder.buildContent(Collections.singletonList(
+                ItemEncoder.encodeChannels(ItemEncoder.encode(this.item),
+                this.channels)));
+    }
+}
@@ -0,0 +1,81 @@
+//        PublishBenchmark.java
+//        ~~~~~~~~~
+//        This module implements the PublishBenchmark class.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures end-to-end publish throughput of a PubControl instance against
+ * in-process stub endpoints, one per client, over loopback HTTP.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgs = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Benchmark)
+public class PublishBenchmark {
+    private static final int ASYNC_PUBLISHES = 100;
+
+    @Param({"1", "3"})
+    public int clientCount;
+
+    @Param({"1", "10"})
+    public int channelCount;
+
+    @Param({"64", "4096"})
+    public int itemSize;
+
+    private final List<BenchmarkData.StubServer> servers =
+            new ArrayList<BenchmarkData.StubServer>();
+    private PubControl pub;
+    private Item item;
+    private List<String> channels;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.pub = new PubControl(null);
+        for (int n = 0; n < this.clientCount; n++) {
+            BenchmarkData.StubServer server = new BenchmarkData.StubServer();
+            this.servers.add(server);
+            this.pub.addClient(new PubControlClient(server.uri()));
+        }
+        this.item = BenchmarkData.item(this.itemSize);
+        this.channels = BenchmarkData.channels(this.channelCount);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.pub.finish();
+        for (BenchmarkData.StubServer server : this.servers)
+            server.stop();
+    }
+
+    @Benchmark
+    public void publish() throws PublishFailedException {
+        this.pub.publish(this.channels, this.item);
+    }
+
+    @Benchmark
+    public PublishResult publishParallel() {
+        return this.pub.publishParallel(this.channels, this.item,
+                Duration.ofSeconds(10));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ASYNC_PUBLISHES)
+    public void publishAsyncAndFinish() {
+        for (int n = 0; n < ASYNC_PUBLISHES; n++)
+            this.pub.publishAsync(this.channels, this.item, null);
+        this.pub.finish();
+    }
+}
@@ -0,0 +1,880 @@
+//        AsyncPublisher.java
+//        ~~~~~~~~~
+//        This module implements the AsyncPublisher class.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.*;
+import java.util.*;
+
+/**
+ * Used internally by PubControlClient to process asynchronous publishes.
+ * Queued requests are drained in batches by up to a configurable number of
+ * concurrent workers, which also bounds the number of batches that are in
+ * flight to the endpoint at any time. Workers are started on demand when
+ * requests are queued and exit once the queue is empty, so no threads are
+ * kept around by an idle client. Workers run on the executor provided by the
+ * consumer, for example a virtual thread executor on JDK 21 and above, or on
+ * an internal pool of threads that time out when idle. The queue can be
+ * bounded, in which case the configured OverflowPolicy determines what
+ * happens to requests made while it is full. Batches are limited by the
+ * number of items and the number of encoded bytes they contain, and only
+ * contain consecutive requests with the same URI and authorization header,
+ * so requests queued before and after a credential change are sent in
+ * separate batches that workers can send concurrently. If a linger
+ * time is configured then workers wait up to that long after a request was
+ * queued for more requests to arrive before sending a batch that is not full.
+ * Failed requests that are to be retried are put back at the front of the
+ * queue once their backoff has elapsed, without holding up a worker.
+ * Requests with a coalesce key supersede a queued request with the same
+ * key in place: the later request takes the position of the queued one,
+ * which is completed as coalesced without being sent. If ordering is
+ * enabled then every request belongs to the lanes given by the hashes of
+ * its channels. A lane is held by the batch that contains its requests
+ * until the batch completed, and by requests that are waiting to be
+ * retried until they are back in the queue, and requests are only taken
+ * from the queue if none of their lanes are held or skipped by the batch
+ * being taken. Requests to the same channel are therefore sent strictly in
+ * order, including across retries, while different channels are sent in
+ * parallel by as many workers as the concurrency allows. On shutdown the
+ * requests that are still queued or waiting to be retried can be removed
+ * and handed back to the caller unsent.
+ */
+class AsyncPublisher {
+    public static final int DEFAULT_CONCURRENCY = 1;
+    public static final int DEFAULT_BATCH_MAX_ITEMS = 100;
+    public static final int DEFAULT_BATCH_MAX_BYTES = 1024 * 1024;
+    private static final long IDLE_THREAD_TIMEOUT_SECONDS = 10;
+    private static final ScheduledExecutorService retryScheduler =
+            createRetryScheduler();
+
+    /**
+     * The handler that publishes a batch of requests and completes them.
+     */
+    interface BatchHandler {
+        void publish(List<PubRequest> reqs);
+    }
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition idleCond = this.lock.newCondition();
+    private final Condition notFullCond = this.lock.newCondition();
+    private final Condition lingerCond = this.lock.newCondition();
+    private final Deque<PubRequest> reqQueue = new ArrayDeque<PubRequest>();
+    private final Map<String, PubRequest> coalescable =
+            new HashMap<String, PubRequest>();
+    private final Map<Integer, Integer> heldLanes =
+            new HashMap<Integer, Integer>();
+    private final Map<List<PubRequest>, ScheduledFuture<?>> retries =
+            new IdentityHashMap<List<PubRequest>, ScheduledFuture<?>>();
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final BatchHandler handler;
+    private int concurrency = DEFAULT_CONCURRENCY;
+    private int capacity = Integer.MAX_VALUE;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private long blockTimeoutNanos;
+    private int batchMaxItems = DEFAULT_BATCH_MAX_ITEMS;
+    private int batchMaxBytes = DEFAULT_BATCH_MAX_BYTES;
+    private long lingerNanos;
+    private boolean ordered;
+    private long queuedItems;
+    private long queuedBytes;
+    private int finishing;
+    private int activeWorkers;
+    private int inFlight;
+    private Executor executor;
+    private ThreadPoolExecutor defaultExecutor;
+    private volatile PublishMetrics metrics = PublishMetrics.NONE;
+
+    AsyncPublisher(BatchHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Set the maximum number of workers, and therefore batches in flight,
+     * that process the queue concurrently.
+     */
+    void setConcurrency(int concurrency) {
+        if (concurrency < 1)
+            throw new IllegalArgumentException("concurrency must be at least 1");
+        this.lock.lock();
+        this.concurrency = concurrency;
+        if (this.defaultExecutor != null)
+            resizeDefaultExecutor(this.defaultExecutor, concurrency);
+        this.lock.unlock();
+    }
+
+    /**
+     * Set the executor used to run workers or null to use the internal
+     * thread pool. Workers that are already running are not affected.
+     */
+    void setExecutor(Executor executor) {
+        this.lock.lock();
+        this.executor = executor;
+        this.lock.unlock();
+    }
+
+    /**
+     * Set the instrumentation that is notified of queued and dropped
+     * requests.
+     */
+    void setMetrics(PublishMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Bound the queue to the specified capacity and apply the specified
+     * policy when it is full. The block timeout is only used by the
+     * BLOCK_WITH_TIMEOUT policy.
+     */
+    void setCapacity(int capacity, OverflowPolicy policy, long blockTimeoutNanos) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be at least 1");
+        if (policy == null)
+            throw new IllegalArgumentException("policy must not be null");
+        this.lock.lock();
+        this.capacity = capacity;
+        this.overflowPolicy = policy;
+        this.blockTimeoutNanos = blockTimeoutNanos;
+        this.notFullCond.signalAll();
+        this.lock.unlock();
+    }
+
+    /**
+     * Limit batches to the specified number of items and encoded bytes and
+     * wait up to the linger time for a batch to fill before sending it. A
+     * single request that exceeds the limits is sent in a batch of its own.
+     */
+    void setBatching(int maxItems, int maxBytes, long lingerNanos) {
+        if (maxItems < 1 || maxBytes < 1)
+            throw new IllegalArgumentException("batch limits must be at least 1");
+        if (lingerNanos < 0)
+            throw new IllegalArgumentException("linger must not be negative");
+        this.lock.lock();
+        this.batchMaxItems = maxItems;
+        this.batchMaxBytes = maxBytes;
+        this.lingerNanos = lingerNanos;
+        this.lingerCond.signalAll();
+        this.lock.unlock();
+    }
+
+    /**
+     * Enable or disable ordered lanes. Should be set before requests are
+     * queued.
+     */
+    void setOrdered(boolean ordered) {
+        this.lock.lock();
+        this.ordered = ordered;
+        this.lock.unlock();
+    }
+
+    /**
+     * The number of requests that completed successfully, including
+     * requests that were coalesced.
+     */
+    long getSucceededCount() {
+        return this.succeeded.sum();
+    }
+
+    /**
+     * The number of requests that completed with a failure.
+     */
+    long getFailedCount() {
+        return this.failed.sum();
+    }
+
+    /**
+     * The number of requests in batches that are currently being sent.
+     */
+    int getInFlightCount() {
+        this.lock.lock();
+        try {
+            return this.inFlight;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Count a request that was queued by this instance as completed. Called
+     * by the request itself.
+     */
+    void completed(boolean success) {
+        if (success)
+            this.succeeded.increment();
+        else
+            this.failed.increment();
+    }
+
+    /**
+     * The number of requests currently waiting in the queue.
+     */
+    int size() {
+        this.lock.lock();
+        try {
+            return this.reqQueue.size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * The number of requests that can be outstanding without overflowing
+     * the queue: the capacity if the queue is bounded and otherwise enough
+     * requests to fill two batches for every worker.
+     */
+    int window() {
+        this.lock.lock();
+        try {
+            return (int)Math.min(this.capacity,
+                    2L * this.concurrency * this.batchMaxItems);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Add a request to the queue and start another worker if fewer than the
+     * maximum number of workers are running. If the queue is full then the
+     * overflow policy is applied and any request that was dropped is
+     * completed with a failed result.
+     */
+    void enqueue(PubRequest req) {
+        Executor executor = null;
+        PubRequest dropped = null;
+        String message = null;
+        PubRequest superseded = null;
+        req.publisher = this;
+        this.lock.lock();
+        try {
+            if (req.coalesceKey != null) {
+                while (true) {
+                    PubRequest queued = this.coalescable.get(req.coalesceKey);
+                    superseded = queued != null ? current(queued) : null;
+                    try {
+                        if (!this.chain(req, superseded))
+                            continue;
+                    } catch (IOException exception) {
+                        dropped = req;
+                        message = "failed to publish: " + exception.getMessage();
+                        superseded = null;
+                        break;
+                    }
+                    if (queued != null)
+                        this.supersede(queued, superseded, req);
+                    break;
+                }
+            }
+            if (superseded == null && dropped == null &&
+                    this.reqQueue.size() >= this.capacity) {
+                switch (this.overflowPolicy) {
+                case BLOCK:
+                case BLOCK_WITH_TIMEOUT:
+                    if (!this.awaitNotFull()) {
+                        dropped = req;
+                        message = "failed to publish: timed out waiting for queue";
+                    }
+                    break;
+                case DROP_OLDEST:
+                    dropped = this.removeFirst();
+                    message = "failed to publish: dropped from full queue";
+                    break;
+                case DROP_NEWEST:
+                    dropped = req;
+                    message = "failed to publish: dropped from full queue";
+                    break;
+                default:
+                    dropped = req;
+                    message = "failed to publish: queue full";
+                    break;
+                }
+            }
+            if (superseded == null && dropped != req) {
+                this.reqQueue.addLast(req);
+                if (req.coalesceKey != null)
+                    this.coalescable.put(req.coalesceKey, req);
+                this.queuedItems += req.itemCount;
+                this.queuedBytes += req.size;
+                if (this.lingerNanos > 0)
+                    this.lingerCond.signal();
+                if (this.activeWorkers < this.concurrency) {
+                    this.activeWorkers++;
+                    executor = this.getExecutor();
+                }
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        if (superseded != null)
+            superseded.coalesce("coalesced");
+        if (dropped != req)
+            this.metrics.requestQueued();
+        if (dropped != null) {
+            this.metrics.requestsDropped(1);
+            dropped.fail(message);
+        }
+        if (executor != null)
+            this.startWorker(executor);
+    }
+
+    /**
+     * An internal method that returns whether the request is encoded with
+     * the previous ID that continues the ID chain given the request it
+     * supersedes, if any. Otherwise the request is re-encoded, and
+     * re-spooled, without holding the lock so that other publishes are not
+     * held up, and false is returned since the superseded request may have
+     * been taken meanwhile. Must be called while holding the lock.
+     */
+    private boolean chain(PubRequest req, PubRequest superseded)
+            throws IOException {
+        String prevId = req.itemPrevId;
+        String id = superseded != null ? superseded.item.getId() : null;
+        if (id != null && id.equals(req.itemPrevId))
+            prevId = superseded.item.getPrevId();
+        if (Objects.equals(prevId, req.item.getPrevId()))
+            return true;
+        this.lock.unlock();
+        try {
+            req.rechain(prevId);
+        } finally {
+            this.lock.lock();
+        }
+        return false;
+    }
+
+    /**
+     * Put the failed requests back at the front of the queue, in their
+     * original order, once the specified delay has elapsed. The requests
+     * are not subject to the queue capacity since they were already
+     * admitted.
+     */
+    void retry(final List<PubRequest> reqs, long delayNanos) {
+        this.lock.lock();
+        this.retries.put(reqs, null);
+        if (this.ordered) {
+            // The lanes stay held until the requests are back in the queue.
+            for (int lane : lanes(reqs))
+                this.holdLane(lane);
+        }
+        this.lock.unlock();
+        try {
+            ScheduledFuture<?> future = retryScheduler.schedule(new Runnable() {
+                public void run() {
+                    requeue(reqs);
+                }
+            }, delayNanos, TimeUnit.NANOSECONDS);
+            this.lock.lock();
+            if (this.retries.containsKey(reqs))
+                this.retries.put(reqs, future);
+            this.lock.unlock();
+        } catch (RejectedExecutionException exception) {
+            this.requeue(reqs);
+        }
+    }
+
+    /**
+     * Stop the workers from lingering until the matching endFinish call, so
+     * that a caller finishing several publishers can disable lingering on
+     * all of them before waiting on any.
+     */
+    void beginFinish() {
+        this.lock.lock();
+        this.finishing++;
+        this.lingerCond.signalAll();
+        this.lock.unlock();
+    }
+
+    /**
+     * Undo a preceding beginFinish call.
+     */
+    void endFinish() {
+        this.lock.lock();
+        this.finishing--;
+        this.lock.unlock();
+    }
+
+    /**
+     * Block until the queue is empty, no retries are pending and all workers
+     * have exited. Workers do not linger while this method is waiting.
+     */
+    void finish() {
+        this.lock.lock();
+        try {
+            this.finishing++;
+            this.lingerCond.signalAll();
+            while (!this.isIdle())
+                this.idleCond.awaitUninterruptibly();
+        } finally {
+            this.finishing--;
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Block like finish for at most the specified timeout, or until the
+     * thread is interrupted, and then remove and return the requests that
+     * are still queued or waiting to be retried. Requests in flight are not
+     * affected.
+     */
+    List<PubRequest> finish(long timeoutNanos) {
+        this.lock.lock();
+        try {
+            this.finishing++;
+            this.lingerCond.signalAll();
+            long remaining = timeoutNanos;
+            try {
+                while (!this.isIdle() && remaining > 0)
+                    remaining = this.idleCond.awaitNanos(remaining);
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+            return this.removeAll();
+        } finally {
+            this.finishing--;
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Remove and return the requests that are queued or waiting to be
+     * retried without waiting for them to be sent. Requests in flight are
+     * not affected.
+     */
+    List<PubRequest> abandon() {
+        this.lock.lock();
+        try {
+            return this.removeAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * An internal method that makes the request supersede the current
+     * request of the queued request with the same coalesce key. The request
+     * must already be chained to the superseded request. Must be called
+     * while holding the lock.
+     */
+    private void supersede(PubRequest queued, PubRequest superseded,
+            PubRequest req) {
+        queued.replacement = req;
+        this.queuedItems += req.itemCount - superseded.itemCount;
+        this.queuedBytes += req.size - superseded.size;
+    }
+
+    /**
+     * An internal method that returns whether the queue is empty, no
+     * retries are pending and all workers have exited. Must be called
+     * while holding the lock.
+     */
+    private boolean isIdle() {
+        return this.reqQueue.size() == 0 && this.activeWorkers == 0 &&
+                this.retries.isEmpty();
+    }
+
+    /**
+     * An internal method that removes the requests waiting to be retried
+     * whose retry did not start yet and the queued requests, in that order,
+     * and returns them. Must be called while holding the lock.
+     */
+    private List<PubRequest> removeAll() {
+        List<PubRequest> reqs = new ArrayList<PubRequest>();
+        Iterator<Map.Entry<List<PubRequest>, ScheduledFuture<?>>> iterator =
+                this.retries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<List<PubRequest>, ScheduledFuture<?>> retry = iterator.next();
+            if (retry.getValue() == null || !retry.getValue().cancel(false))
+                continue;
+            iterator.remove();
+            this.releaseLanes(retry.getKey());
+            reqs.addAll(retry.getKey());
+        }
+        while (this.reqQueue.size() > 0)
+            reqs.add(this.removeFirst());
+        this.notFullCond.signalAll();
+        if (this.isIdle())
+            this.idleCond.signalAll();
+        return reqs;
+    }
+
+    /**
+     * An internal method that puts requests whose backoff has elapsed back
+     * at the front of the queue and starts a worker if needed.
+     */
+    private void requeue(List<PubRequest> reqs) {
+        Executor executor = null;
+        this.lock.lock();
+        try {
+            for (int n = reqs.size() - 1; n >= 0; n--) {
+                PubRequest req = reqs.get(n);
+                this.reqQueue.addFirst(req);
+                this.queuedItems += req.itemCount;
+                this.queuedBytes += req.size;
+            }
+            this.retries.remove(reqs);
+            this.releaseLanes(reqs);
+            this.lingerCond.signal();
+            if (this.activeWorkers < this.concurrency) {
+                this.activeWorkers++;
+                executor = this.getExecutor();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        if (executor != null)
+            this.startWorker(executor);
+    }
+
+    /**
+     * An internal method that waits until there is room in the queue,
+     * giving up after the block timeout if the policy is BLOCK_WITH_TIMEOUT
+     * or if the thread is interrupted. Must be called while holding the lock.
+     */
+    private boolean awaitNotFull() {
+        boolean timed = this.overflowPolicy == OverflowPolicy.BLOCK_WITH_TIMEOUT;
+        long remaining = this.blockTimeoutNanos;
+        try {
+            while (this.reqQueue.size() >= this.capacity) {
+                if (!timed) {
+                    this.notFullCond.await();
+                } else {
+                    if (remaining <= 0)
+                        return false;
+                    remaining = this.notFullCond.awaitNanos(remaining);
+                }
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * An internal method that submits a worker to the executor. If the
+     * executor rejects it and no other worker is left to drain the queue
+     * then the queued requests are failed.
+     */
+    private void startWorker(Executor executor) {
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    drain();
+                }
+            });
+        } catch (RejectedExecutionException exception) {
+            List<PubRequest> failed = new ArrayList<PubRequest>();
+            this.lock.lock();
+            this.activeWorkers--;
+            if (this.activeWorkers == 0) {
+                while (this.reqQueue.size() > 0)
+                    failed.add(this.removeFirst());
+                this.idleCond.signalAll();
+                this.notFullCond.signalAll();
+            }
+            this.lock.unlock();
+            if (failed.size() > 0)
+                this.metrics.requestsDropped(failed.size());
+            for (PubRequest req : failed)
+                req.fail("failed to publish: executor rejected worker");
+        }
+    }
+
+    /**
+     * An internal method that runs as a worker and publishes queued requests
+     * in batches. The worker exits as soon as the queue is empty. If the
+     * worker is stopped by an error then the batch it was sending is no
+     * longer counted as in flight and another worker takes over the queue.
+     */
+    private void drain() {
+        List<PubRequest> reqs = null;
+        List<PubRequest> sending = null;
+        boolean exited = false;
+        try {
+            while (true) {
+                Executor executor = null;
+                this.lock.lock();
+                if (reqs != null)
+                    this.inFlight -= reqs.size();
+                if (reqs != null && this.releaseLanes(reqs) &&
+                        this.activeWorkers < this.concurrency &&
+                        this.reqQueue.size() > 0) {
+                    // Requests that waited for the released lanes may be taken
+                    // by another worker.
+                    this.activeWorkers++;
+                    executor = this.getExecutor();
+                }
+                reqs = this.takeBatch();
+                if (reqs == null) {
+                    this.activeWorkers--;
+                    exited = true;
+                    if (this.isIdle())
+                        this.idleCond.signalAll();
+                    this.lock.unlock();
+                    if (executor != null)
+                        this.startWorker(executor);
+                    return;
+                }
+                this.inFlight += reqs.size();
+                this.lock.unlock();
+                if (executor != null)
+                    this.startWorker(executor);
+                sending = reqs;
+                try {
+                    this.handler.publish(reqs);
+                } catch (RuntimeException exception) {
+                    // A failing handler must not stop the worker.
+                }
+                sending = null;
+            }
+        } finally {
+            if (!exited)
+                this.abortWorker(sending);
+        }
+    }
+
+    /**
+     * An internal method that accounts for a worker that was stopped by an
+     * error while sending the specified batch. The batch is no longer
+     * counted as in flight and its lanes are released. If requests are
+     * still queued then a replacement worker is started, otherwise the
+     * worker is no longer counted as active.
+     */
+    private void abortWorker(List<PubRequest> reqs) {
+        Executor executor = null;
+        this.lock.lock();
+        if (reqs != null) {
+            this.inFlight -= reqs.size();
+            this.releaseLanes(reqs);
+        }
+        if (this.reqQueue.size() > 0) {
+            executor = this.getExecutor();
+        } else {
+            this.activeWorkers--;
+            if (this.isIdle())
+                this.idleCond.signalAll();
+        }
+        this.lock.unlock();
+        if (executor != null)
+            this.startWorker(executor);
+    }
+
+    /**
+     * An internal method that waits for a batch to fill up or for the oldest
+     * queued request to reach the linger time and then removes the batch
+     * from the queue. Returns null if the queue is empty or, with ordering
+     * enabled, if all of the queued requests are in held lanes. Must be
+     * called while holding the lock.
+     */
+    private List<PubRequest> takeBatch() {
+        while (true) {
+            if (this.reqQueue.size() == 0)
+                return null;
+            if (this.lingerNanos == 0 || this.finishing > 0 ||
+                    this.queuedItems >= this.batchMaxItems ||
+                    this.queuedBytes >= this.batchMaxBytes)
+                break;
+            long wait = this.reqQueue.peekFirst().enqueuedNanos +
+                    this.lingerNanos - System.nanoTime();
+            if (wait <= 0)
+                break;
+            try {
+                this.lingerCond.awaitNanos(wait);
+            } catch (InterruptedException exception) {
+                break;
+            }
+        }
+        if (this.ordered)
+            return this.takeOrderedBatch();
+        List<PubRequest> reqs = new ArrayList<PubRequest>();
+        int items = 0;
+        int bytes = 0;
+        while (this.reqQueue.size() > 0) {
+            PubRequest req = current(this.reqQueue.peekFirst());
+            if (reqs.size() > 0 && (items + req.itemCount > this.batchMaxItems ||
+                    bytes + req.size > this.batchMaxBytes ||
+                    !sameTarget(reqs.get(0), req)))
+                break;
+            reqs.add(this.removeFirst());
+            items += req.itemCount;
+            bytes += req.size;
+        }
+        this.notFullCond.signalAll();
+        return reqs;
+    }
+
+    /**
+     * An internal method that removes a batch of requests from the queue
+     * whose lanes are not held, in queue order, and holds their lanes. A
+     * request that is not taken blocks its lanes for the rest of the batch
+     * so that no later request of the same lane overtakes it. Returns null
+     * if no request could be taken. Must be called while holding the lock.
+     */
+    private List<PubRequest> takeOrderedBatch() {
+        List<PubRequest> reqs = new ArrayList<PubRequest>();
+        Set<Integer> blocked = new HashSet<Integer>(this.heldLanes.keySet());
+        int items = 0;
+        int bytes = 0;
+        Iterator<PubRequest> iterator = this.reqQueue.iterator();
+        while (iterator.hasNext() && items < this.batchMaxItems &&
+                bytes < this.batchMaxBytes) {
+            PubRequest queued = iterator.next();
+            PubRequest req = current(queued);
+            boolean free = reqs.size() == 0 ||
+                    (items + req.itemCount <= this.batchMaxItems &&
+                    bytes + req.size <= this.batchMaxBytes &&
+                    sameTarget(reqs.get(0), req));
+            for (int n = 0; free && n < req.lanes.length; n++)
+                free = !blocked.contains(req.lanes[n]);
+            if (!free) {
+                for (int lane : req.lanes)
+                    blocked.add(lane);
+                continue;
+            }
+            iterator.remove();
+            this.removed(queued);
+            reqs.add(req);
+            items += req.itemCount;
+            bytes += req.size;
+        }
+        if (reqs.size() == 0)
+            return null;
+        for (int lane : lanes(reqs))
+            this.holdLane(lane);
+        this.notFullCond.signalAll();
+        return reqs;
+    }
+
+    /**
+     * An internal method that releases the lanes of a batch or of requests
+     * that were put back in the queue, once per distinct lane. Returns
+     * whether any lane became free. Must be called while holding the lock.
+     */
+    private boolean releaseLanes(List<PubRequest> reqs) {
+        if (this.heldLanes.isEmpty())
+            return false;
+        boolean released = false;
+        for (int lane : lanes(reqs)) {
+            Integer holds = this.heldLanes.get(lane);
+            if (holds == null)
+                continue;
+            if (holds > 1) {
+                this.heldLanes.put(lane, holds - 1);
+            } else {
+                this.heldLanes.remove(lane);
+                released = true;
+            }
+        }
+        return released;
+    }
+
+    /**
+     * An internal method that adds a hold on a lane. Must be called while
+     * holding the lock.
+     */
+    private void holdLane(int lane) {
+        Integer holds = this.heldLanes.get(lane);
+        this.heldLanes.put(lane, holds != null ? holds + 1 : 1);
+    }
+
+    /**
+     * An internal method that removes the oldest request from the queue.
+     * Must be called while holding the lock.
+     */
+    private PubRequest removeFirst() {
+        return this.removed(this.reqQueue.removeFirst());
+    }
+
+    /**
+     * An internal method that updates the bookkeeping for a request that
+     * was removed from the queue and returns the request that is to be
+     * sent in its place. Must be called while holding the lock.
+     */
+    private PubRequest removed(PubRequest queued) {
+        if (queued.coalesceKey != null &&
+                this.coalescable.get(queued.coalesceKey) == queued)
+            this.coalescable.remove(queued.coalesceKey);
+        PubRequest req = current(queued);
+        this.queuedItems -= req.itemCount;
+        this.queuedBytes -= req.size;
+        return req;
+    }
+
+    /**
+     * An internal method that returns the distinct lanes of the requests.
+     */
+    private static Set<Integer> lanes(List<PubRequest> reqs) {
+        Set<Integer> lanes = new HashSet<Integer>();
+        for (PubRequest req : reqs)
+            for (int lane : req.lanes)
+                lanes.add(lane);
+        return lanes;
+    }
+
+    /**
+     * An internal method that returns whether the requests are sent to the
+     * same URI with the same authorization header.
+     */
+    private static boolean sameTarget(PubRequest a, PubRequest b) {
+        return Objects.equals(a.uri, b.uri) && (a.auth == b.auth ||
+                (a.auth != null && a.auth.equals(b.auth)));
+    }
+
+    /**
+     * An internal method that returns the latest request that superseded the
+     * queued request or the queued request itself.
+     */
+    private static PubRequest current(PubRequest queued) {
+        return queued.replacement != null ? queued.replacement : queued;
+    }
+
+    /**
+     * An internal method that returns the configured executor or lazily
+     * creates the internal thread pool. Its threads are daemon threads so
+     * that idle workers do not keep the JVM alive after finish returns.
+     * Must be called while holding the lock.
+     */
+    private Executor getExecutor() {
+        if (this.executor != null)
+            return this.executor;
+        if (this.defaultExecutor == null) {
+            this.defaultExecutor = new ThreadPoolExecutor(this.concurrency,
+                    this.concurrency, IDLE_THREAD_TIMEOUT_SECONDS,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new DaemonThreadFactory("pubcontrol-publish", true));
+            this.defaultExecutor.allowCoreThreadTimeOut(true);
+        }
+        return this.defaultExecutor;
+    }
+
+    /**
+     * An internal method that creates the scheduler shared by all instances
+     * for putting requests back in the queue once their backoff elapsed.
+     */
+    private static ScheduledExecutorService createRetryScheduler() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1,
+                new DaemonThreadFactory("pubcontrol-retry", false));
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+    /**
+     * An internal method that resizes the internal thread pool.
+     */
+    private static void resizeDefaultExecutor(ThreadPoolExecutor executor,
+            int size) {
+        if (size > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(size);
+            executor.setCorePoolSize(size);
+        } else {
+            executor.setCorePoolSize(size);
+            executor.setMaximumPoolSize(size);
+        }
+    }
+}
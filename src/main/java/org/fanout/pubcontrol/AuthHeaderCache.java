@@ -0,0 +1,198 @@
+//        AuthHeaderCache.java
+//        ~~~~~~~~~
+//        This module implements the AuthHeaderCache class.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.*;
+import java.util.*;
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.time.Duration;
+import javax.crypto.spec.SecretKeySpec;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+
+/**
+ * Used internally by PubControlClient to hold the authentication settings
+ * and the authorization header generated from them. The header is generated
+ * once and reused until the settings change. JWT headers without an explicit
+ * 'exp' claim are generated with a one hour expiry and are re-signed once the
+ * refresh margin before that expiry is reached. Only one caller re-signs the
+ * token while all other callers keep using the still valid cached header.
+ */
+class AuthHeaderCache {
+    public static final Duration DEFAULT_REFRESH_MARGIN = Duration.ofMinutes(5);
+    private static final long JWT_LIFETIME_MILLIS = 3600 * 1000;
+
+    private final Lock lock = new ReentrantLock();
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+    private String authBasicUser;
+    private String authBasicPass;
+    private Map<String, Object> authJwtClaim;
+    private Key authJwtKey;
+    private String authBearerKey;
+    private long refreshMarginMillis = DEFAULT_REFRESH_MARGIN.toMillis();
+    private long generation;
+    private volatile CachedHeader cached;
+
+    /**
+     * Use basic authentication with the specified username and password.
+     */
+    public void setBasic(String userName, String password) {
+        this.lock.lock();
+        this.authBasicUser = userName;
+        this.authBasicPass = password;
+        this.invalidate();
+        this.lock.unlock();
+    }
+
+    /**
+     * Use JWT authentication with the specified claims and key. The claims
+     * are copied so that later changes to the map have no effect.
+     */
+    public void setJwt(Map<String, Object> claims, byte[] key) {
+        this.lock.lock();
+        this.authJwtClaim = claims != null ?
+                new HashMap<String, Object>(claims) : null;
+        this.authJwtKey = key != null ? new SecretKeySpec(key,
+                SignatureAlgorithm.HS256.getJcaName()) : null;
+        this.invalidate();
+        this.lock.unlock();
+    }
+
+    /**
+     * Use bearer authentication with the specified key.
+     */
+    public void setBearer(String key) {
+        this.lock.lock();
+        this.authBearerKey = key;
+        this.invalidate();
+        this.lock.unlock();
+    }
+
+    /**
+     * Set how long before expiry a cached JWT header is re-signed.
+     */
+    public void setRefreshMargin(Duration margin) {
+        if (margin == null || margin.isNegative())
+            throw new IllegalArgumentException("margin must not be negative");
+        this.lock.lock();
+        this.refreshMarginMillis = margin.toMillis();
+        this.invalidate();
+        this.lock.unlock();
+    }
+
+    /**
+     * The generation of the settings, which changes whenever the settings
+     * are changed. Headers generated for the same generation use the same
+     * credentials.
+     */
+    public long getGeneration() {
+        this.lock.lock();
+        try {
+            return this.generation;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Return the authorization header for the current settings, or null if
+     * no authentication is configured. This method does not block on other
+     * callers.
+     */
+    public String get() {
+        CachedHeader cached = this.cached;
+        long now = System.currentTimeMillis();
+        if (cached != null && now < cached.refreshAt)
+            return cached.header;
+        if (cached != null && now < cached.expiresAt) {
+            if (this.refreshing.compareAndSet(false, true)) {
+                try {
+                    return this.refresh(now).header;
+                } finally {
+                    this.refreshing.set(false);
+                }
+            }
+            return cached.header;
+        }
+        return this.refresh(now).header;
+    }
+
+    /**
+     * An internal method that discards the cached header. Must be called
+     * while holding the lock.
+     */
+    private void invalidate() {
+        this.generation++;
+        this.cached = null;
+    }
+
+    /**
+     * An internal method that generates a new header from a snapshot of the
+     * settings. The signing is performed outside of the lock and the result
+     * is only cached if the settings did not change in the meantime.
+     */
+    private CachedHeader refresh(long now) {
+        this.lock.lock();
+        long generation = this.generation;
+        String basicUser = this.authBasicUser;
+        String basicPass = this.authBasicPass;
+        Map<String, Object> jwtClaim = this.authJwtClaim;
+        Key jwtKey = this.authJwtKey;
+        String bearerKey = this.authBearerKey;
+        long refreshMargin = this.refreshMarginMillis;
+        this.lock.unlock();
+
+        CachedHeader header;
+        if (basicUser != null && basicPass != null) {
+            header = new CachedHeader(Base64.getEncoder().encodeToString(
+                    (basicUser + ":" + basicPass).getBytes(StandardCharsets.UTF_8)),
+                    Long.MAX_VALUE, Long.MAX_VALUE);
+        } else if (jwtClaim != null) {
+            Map<String, Object> claims = new HashMap<String, Object>(jwtClaim);
+            long expiresAt = Long.MAX_VALUE;
+            long refreshAt = Long.MAX_VALUE;
+            if (jwtClaim.get("exp") == null) {
+                expiresAt = now + JWT_LIFETIME_MILLIS;
+                refreshAt = expiresAt - refreshMargin;
+                claims.put("exp", new Date(expiresAt));
+            }
+            String token = Jwts.builder().setClaims(claims).
+                    signWith(SignatureAlgorithm.HS256, jwtKey).compact();
+            header = new CachedHeader("Bearer " + token, refreshAt, expiresAt);
+        } else if (bearerKey != null) {
+            header = new CachedHeader("Bearer " + bearerKey,
+                    Long.MAX_VALUE, Long.MAX_VALUE);
+        } else {
+            header = new CachedHeader(null, Long.MAX_VALUE, Long.MAX_VALUE);
+        }
+
+        this.lock.lock();
+        if (this.generation == generation)
+            this.cached = header;
+        this.lock.unlock();
+        return header;
+    }
+
+    /**
+     * An immutable header value along with the times at which it should be
+     * refreshed and at which it expires.
+     */
+    private static class CachedHeader {
+        final String header;
+        final long refreshAt;
+        final long expiresAt;
+
+        CachedHeader(String header, long refreshAt, long expiresAt) {
+            this.header = header;
+            this.refreshAt = refreshAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+//        CircuitBreaker.java
+//        ~~~~~~~~~
+//        This module implements the CircuitBreaker class.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+import java.time.Duration;
+
+/**
+ * Stops a PubControlClient instance from sending publishes to an endpoint
+ * that keeps failing. The breaker opens when the configured number of
+ * consecutive publishes failed or when the configured rate of the most
+ * recent publishes failed. While it is open publishes fail immediately.
+ * After the open duration a single trial publish is let through: if it
+ * succeeds the breaker closes, otherwise it opens again. A publish counts
+ * as failed if no response was received or the endpoint responded with a
+ * 5xx or 429 status code. A breaker tracks a single endpoint and must not
+ * be shared between PubControlClient instances.
+ */
+public class CircuitBreaker {
+    private final int consecutiveFailureThreshold;
+    private final double failureRateThreshold;
+    private final long openNanos;
+    private final boolean[] window;
+    private int windowIndex;
+    private int windowCount;
+    private int windowFailures;
+    private int consecutiveFailures;
+    private CircuitState state = CircuitState.CLOSED;
+    private long openUntil;
+    private boolean trialInFlight;
+    private long epoch;
+    private volatile CircuitBreakerListener listener;
+    private volatile String uri;
+
+    /**
+     * Initialize with the number of consecutive failed publishes that opens
+     * the breaker and how long it stays open before a trial publish.
+     */
+    public CircuitBreaker(int consecutiveFailureThreshold, Duration openDuration) {
+        this(consecutiveFailureThreshold, 0, 0, openDuration);
+    }
+
+    /**
+     * Initialize with the number of consecutive failed publishes that opens
+     * the breaker, the rate of failed publishes among the last window size
+     * publishes that opens the breaker, and how long it stays open before a
+     * trial publish. A threshold of 0 disables that condition. The failure
+     * rate is only evaluated once the window is full.
+     */
+    public CircuitBreaker(int consecutiveFailureThreshold,
+            double failureRateThreshold, int windowSize, Duration openDuration) {
+        if (consecutiveFailureThreshold < 0)
+            throw new IllegalArgumentException(
+                    "consecutiveFailureThreshold must not be negative");
+        if (failureRateThreshold < 0 || failureRateThreshold > 1)
+            throw new IllegalArgumentException(
+                    "failureRateThreshold must be between 0 and 1");
+        if (failureRateThreshold > 0 && windowSize < 1)
+            throw new IllegalArgumentException("windowSize must be at least 1");
+        if (openDuration.isNegative())
+            throw new IllegalArgumentException("openDuration must not be negative");
+        this.consecutiveFailureThreshold = consecutiveFailureThreshold;
+        this.failureRateThreshold = failureRateThreshold;
+        this.window = new boolean[failureRateThreshold > 0 ? windowSize : 0];
+        this.openNanos = openDuration.toNanos();
+    }
+
+    /**
+     * Set the listener that is notified of state transitions. Pass null to
+     * remove the listener.
+     */
+    public void setListener(CircuitBreakerListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * The current state of the breaker. An open breaker whose open duration
+     * has elapsed is reported as open until the next publish is attempted.
+     */
+    public synchronized CircuitState getState() {
+        return this.state;
+    }
+
+    /**
+     * An internal method that sets the URI reported to the listener.
+     */
+    void setUri(String uri) {
+        this.uri = uri;
+    }
+
+    /**
+     * An internal method that determines whether a publish may be sent and
+     * returns its permit, or null if it may not be sent. Every permit must
+     * be passed to record, or to release if the publish was not sent.
+     */
+    Permit allowRequest() {
+        Permit permit = null;
+        synchronized (this) {
+            if (this.state == CircuitState.CLOSED)
+                return new Permit(this.epoch, false);
+            if (this.state == CircuitState.HALF_OPEN) {
+                if (this.trialInFlight)
+                    return null;
+                this.trialInFlight = true;
+                return new Permit(this.epoch, true);
+            }
+            if (System.nanoTime() - this.openUntil < 0)
+                return null;
+            this.setState(CircuitState.HALF_OPEN);
+            this.trialInFlight = true;
+            permit = new Permit(this.epoch, true);
+        }
+        this.notifyListener(CircuitState.OPEN, CircuitState.HALF_OPEN);
+        return permit;
+    }
+
+    /**
+     * An internal method that gives back the permit of a publish that could
+     * not be sent, without recording an outcome, so that a half-open
+     * breaker lets another trial publish through.
+     */
+    synchronized void release(Permit permit) {
+        if (permit.trial && permit.epoch == this.epoch)
+            this.trialInFlight = false;
+    }
+
+    /**
+     * An internal method that records the outcome of a publish given its
+     * permit and its HTTP status code or 0 if no response was received.
+     * Only the trial publish resolves a half-open breaker. The outcome of
+     * a publish that was let through before the latest state transition is
+     * ignored.
+     */
+    void record(Permit permit, int statusCode) {
+        boolean failed = statusCode == 0 || statusCode == 429 ||
+                statusCode >= 500;
+        CircuitState previous = null;
+        CircuitState current = null;
+        synchronized (this) {
+            if (permit.epoch != this.epoch)
+                return;
+            if (permit.trial) {
+                this.trialInFlight = false;
+                previous = this.state;
+                if (failed) {
+                    this.open();
+                } else {
+                    this.reset();
+                    this.setState(CircuitState.CLOSED);
+                }
+            } else {
+                this.consecutiveFailures = failed ?
+                        this.consecutiveFailures + 1 : 0;
+                if (this.window.length > 0) {
+                    if (this.windowCount == this.window.length) {
+                        if (this.window[this.windowIndex])
+                            this.windowFailures--;
+                    } else {
+                        this.windowCount++;
+                    }
+                    this.window[this.windowIndex] = failed;
+                    if (failed)
+                        this.windowFailures++;
+                    this.windowIndex = (this.windowIndex + 1) % this.window.length;
+                }
+                if (this.shouldOpen()) {
+                    previous = this.state;
+                    this.open();
+                }
+            }
+            current = this.state;
+        }
+        if (previous != null)
+            this.notifyListener(previous, current);
+    }
+
+    private boolean shouldOpen() {
+        if (this.consecutiveFailureThreshold > 0 &&
+                this.consecutiveFailures >= this.consecutiveFailureThreshold)
+            return true;
+        return this.window.length > 0 &&
+                this.windowCount == this.window.length &&
+                this.windowFailures >= this.failureRateThreshold *
+                this.window.length;
+    }
+
+    private void open() {
+        this.reset();
+        this.setState(CircuitState.OPEN);
+        this.openUntil = System.nanoTime() + this.openNanos;
+    }
+
+    private void setState(CircuitState state) {
+        this.state = state;
+        this.epoch++;
+    }
+
+    private void reset() {
+        this.consecutiveFailures = 0;
+        this.windowIndex = 0;
+        this.windowCount = 0;
+        this.windowFailures = 0;
+    }
+
+    private void notifyListener(CircuitState previous, CircuitState current) {
+        CircuitBreakerListener listener = this.listener;
+        if (listener == null)
+            return;
+        try {
+            listener.stateChanged(this.uri, previous, current);
+        } catch (RuntimeException exception) { }
+    }
+
+    /**
+     * The permission to send a publish, recording the state transition it
+     * was given after and whether it is the trial publish of a half-open
+     * breaker.
+     */
+    static class Permit {
+        final long epoch;
+        final boolean trial;
+
+        Permit(long epoch, boolean trial) {
+            this.epoch = epoch;
+            this.trial = trial;
+        }
+    }
+}
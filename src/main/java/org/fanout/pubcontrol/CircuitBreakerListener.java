@@ -0,0 +1,21 @@
+//        CircuitBreakerListener.java
+//        ~~~~~~~~~
+//        This module implements the CircuitBreakerListener interface.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+/**
+ * The CircuitBreakerListener interface is used to observe the state
+ * transitions of a circuit breaker. The single interface method is called
+ * on the publishing thread after each transition.
+ */
+public interface CircuitBreakerListener {
+    /**
+     * The event method indicating that the circuit breaker of the endpoint
+     * with the specified URI changed from the previous to the current state.
+     */
+    void stateChanged(String uri, CircuitState previous, CircuitState current);
+}
@@ -0,0 +1,29 @@
+//        CircuitState.java
+//        ~~~~~~~~~
+//        This module implements the CircuitState enum.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+/**
+ * The state of the circuit breaker of a PubControlClient instance.
+ */
+public enum CircuitState {
+    /**
+     * Publishes are sent to the endpoint and their outcomes are tracked.
+     */
+    CLOSED,
+
+    /**
+     * Publishes fail immediately without being sent to the endpoint.
+     */
+    OPEN,
+
+    /**
+     * A single trial publish is sent to the endpoint to determine whether
+     * it has recovered while other publishes fail immediately.
+     */
+    HALF_OPEN
+}
@@ -0,0 +1,44 @@
+//        Compression.java
+//        ~~~~~~~~~
+//        This module implements the Compression enum.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+/**
+ * The content encoding used to compress the bodies of publish requests
+ * sent by a PubControlClient instance. The endpoint must support the
+ * selected content encoding.
+ */
+public enum Compression {
+    /**
+     * Send request bodies uncompressed.
+     */
+    NONE(null),
+
+    /**
+     * Compress request bodies using the gzip content encoding.
+     */
+    GZIP("gzip"),
+
+    /**
+     * Compress request bodies using the deflate content encoding, which is
+     * zlib-wrapped deflate data.
+     */
+    DEFLATE("deflate");
+
+    private final String contentEncoding;
+
+    Compression(String contentEncoding) {
+        this.contentEncoding = contentEncoding;
+    }
+
+    /**
+     * The value of the Content-Encoding header or null if uncompressed.
+     */
+    public String getContentEncoding() {
+        return this.contentEncoding;
+    }
+}
@@ -0,0 +1,177 @@
+//        Compressor.java
+//        ~~~~~~~~~
+//        This module implements the Compressor class.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Used internally by PubControlClient to compress request bodies. The
+ * buffers of a body are fed to the deflater one after the other and the
+ * compressed output is written to a list of chunks, so the body is never
+ * copied into a single array. Deflaters are kept in a small pool and reset
+ * between uses rather than being allocated, along with their native
+ * memory, for every request. The native memory of pooled deflaters is
+ * released when the compressor is cleared or closed.
+ */
+class Compressor {
+    private static final int MAX_IDLE_DEFLATERS = 8;
+    private static final int MIN_CHUNK_SIZE = 512;
+    private static final int MAX_CHUNK_SIZE = 64 * 1024;
+    private static final byte[] GZIP_HEADER = new byte[] {
+            0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte)0xff};
+    private static final int GZIP_TRAILER_SIZE = 8;
+
+    private final Compression compression;
+    private final int level;
+    private final int threshold;
+    private final Queue<Deflater> idle = new ConcurrentLinkedQueue<Deflater>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private volatile boolean closed;
+
+    Compressor(Compression compression, int level, int threshold) {
+        this.compression = compression;
+        this.level = level;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Whether a body of the specified size should be compressed.
+     */
+    boolean accepts(int size) {
+        return size >= this.threshold;
+    }
+
+    /**
+     * The value of the Content-Encoding header of compressed bodies.
+     */
+    String getContentEncoding() {
+        return this.compression.getContentEncoding();
+    }
+
+    /**
+     * Compress the body of the specified size and return the compressed
+     * chunks. The buffers of the body are not modified.
+     */
+    List<ByteBuffer> compress(List<ByteBuffer> content, int size) {
+        boolean gzip = this.compression == Compression.GZIP;
+        Deflater deflater = this.acquire(gzip);
+        try {
+            int chunkSize = Math.max(MIN_CHUNK_SIZE,
+                    Math.min(MAX_CHUNK_SIZE, size / 4));
+            List<ByteBuffer> out = new ArrayList<ByteBuffer>();
+            ByteBuffer chunk = ByteBuffer.allocate(chunkSize);
+            CRC32 crc = gzip ? new CRC32() : null;
+            if (gzip)
+                chunk.put(GZIP_HEADER);
+            for (ByteBuffer buffer : content) {
+                if (crc != null)
+                    crc.update(buffer.duplicate());
+                deflater.setInput(buffer.duplicate());
+                while (!deflater.needsInput())
+                    chunk = deflate(deflater, chunk, out);
+            }
+            deflater.finish();
+            while (!deflater.finished())
+                chunk = deflate(deflater, chunk, out);
+            if (gzip) {
+                if (chunk.remaining() < GZIP_TRAILER_SIZE) {
+                    chunk.flip();
+                    out.add(chunk);
+                    chunk = ByteBuffer.allocate(GZIP_TRAILER_SIZE);
+                }
+                chunk.order(ByteOrder.LITTLE_ENDIAN);
+                chunk.putInt((int)crc.getValue());
+                chunk.putInt(size);
+            }
+            chunk.flip();
+            if (chunk.hasRemaining())
+                out.add(chunk);
+            return out;
+        } finally {
+            this.release(deflater);
+        }
+    }
+
+    /**
+     * End the deflaters that are idle in the pool, releasing their native
+     * memory. The compressor can still be used afterwards.
+     */
+    void clear() {
+        Deflater deflater;
+        while ((deflater = this.idle.poll()) != null) {
+            this.idleCount.decrementAndGet();
+            deflater.end();
+        }
+    }
+
+    /**
+     * End the deflaters that are idle in the pool and stop pooling, so that
+     * deflaters that are in use are ended once they are released. Used when
+     * the compressor is replaced.
+     */
+    void close() {
+        this.closed = true;
+        this.clear();
+    }
+
+    /**
+     * An internal method that deflates into the chunk and returns the chunk
+     * to continue with, which is a new chunk if the current one is full.
+     */
+    private static ByteBuffer deflate(Deflater deflater, ByteBuffer chunk,
+            List<ByteBuffer> out) {
+        if (!chunk.hasRemaining()) {
+            chunk.flip();
+            out.add(chunk);
+            chunk = ByteBuffer.allocate(chunk.capacity());
+        }
+        deflater.deflate(chunk);
+        return chunk;
+    }
+
+    /**
+     * An internal method that takes a deflater from the pool or creates
+     * one. Gzip bodies use raw deflate data wrapped in a gzip header and
+     * trailer, while deflate bodies use zlib-wrapped deflate data.
+     */
+    private Deflater acquire(boolean gzip) {
+        Deflater deflater = this.idle.poll();
+        if (deflater == null)
+            return new Deflater(this.level, gzip);
+        this.idleCount.decrementAndGet();
+        return deflater;
+    }
+
+    /**
+     * An internal method that resets the deflater and returns it to the
+     * pool, or releases it if the pool is full or the compressor is closed.
+     */
+    private void release(Deflater deflater) {
+        if (this.closed) {
+            deflater.end();
+            return;
+        }
+        deflater.reset();
+        if (this.idleCount.incrementAndGet() <= MAX_IDLE_DEFLATERS) {
+            this.idle.offer(deflater);
+            // The compressor may have been closed while the deflater was
+            // being pooled.
+            if (this.closed)
+                this.clear();
+        } else {
+            this.idleCount.decrementAndGet();
+            deflater.end();
+        }
+    }
+}
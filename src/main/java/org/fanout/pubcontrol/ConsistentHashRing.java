@@ -0,0 +1,79 @@
+//        ConsistentHashRing.java
+//        ~~~~~~~~~
+//        This module implements the ConsistentHashRing class.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Used internally by PubControl to map channels to PubControlClient
+ * instances using consistent hashing. Each client is placed on the ring at
+ * a number of virtual nodes derived from its URI, and a channel belongs to
+ * the client at the first virtual node at or after the hash of the
+ * channel. Adding or removing a client therefore only moves the channels
+ * of the virtual nodes it gains or loses, and the same set of clients
+ * always produces the same mapping. A ring is immutable.
+ */
+class ConsistentHashRing {
+    private final long[] hashes;
+    private final PubControlClient[] owners;
+
+    ConsistentHashRing(List<PubControlClient> clients, int virtualNodes) {
+        List<long[]> nodes = new ArrayList<long[]>();
+        for (int n = 0; n < clients.size(); n++) {
+            String uri = clients.get(n).getUri();
+            for (int v = 0; v < virtualNodes; v++)
+                nodes.add(new long[] {hash(uri + "#" + v), n});
+        }
+        Collections.sort(nodes, new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                int result = Long.compare(a[0], b[0]);
+                return result != 0 ? result : Long.compare(a[1], b[1]);
+            }
+        });
+        this.hashes = new long[nodes.size()];
+        this.owners = new PubControlClient[nodes.size()];
+        for (int n = 0; n < nodes.size(); n++) {
+            this.hashes[n] = nodes.get(n)[0];
+            this.owners[n] = clients.get((int)nodes.get(n)[1]);
+        }
+    }
+
+    /**
+     * The client that owns the channel or null if the ring is empty.
+     */
+    PubControlClient get(String channel) {
+        if (this.hashes.length == 0)
+            return null;
+        int index = Arrays.binarySearch(this.hashes, hash(channel));
+        if (index < 0)
+            index = -index - 1;
+        if (index == this.hashes.length)
+            index = 0;
+        return this.owners[index];
+    }
+
+    /**
+     * An internal method that hashes the UTF-8 bytes of the value using
+     * 64-bit FNV-1a followed by the MurmurHash3 finalizer, which spreads
+     * similar values such as the virtual nodes of a client evenly.
+     */
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,43 @@
+//        DaemonThreadFactory.java
+//        ~~~~~~~~~
+//        This module implements the DaemonThreadFactory class.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the daemon threads of the internal thread pools and schedulers
+ * so that they never keep the application from exiting. The threads are
+ * named after the pool, followed by a sequence number if the pool can
+ * have more than one thread.
+ */
+class DaemonThreadFactory implements ThreadFactory {
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final String name;
+    private final boolean numbered;
+
+    /**
+     * Initialize with the thread name and whether a sequence number is
+     * appended to it.
+     */
+    DaemonThreadFactory(String name, boolean numbered) {
+        this.name = name;
+        this.numbered = numbered;
+    }
+
+    /**
+     * Create an unstarted daemon thread that runs the specified runnable.
+     */
+    public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, this.numbered ?
+                this.name + "-" + threadCount.incrementAndGet() : this.name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
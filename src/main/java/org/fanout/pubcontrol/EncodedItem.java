@@ -0,0 +1,67 @@
+//        EncodedItem.java
+//        ~~~~~~~~~
+//        This module implements the EncodedItem class.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Used internally to hold the JSON encoding of an Item. The encoding is the
+ * exported item object without its closing brace so that the channel can be
+ * appended for each channel that the item is published to. An EncodedItem
+ * is immutable and is shared by every channel and every PubControlClient
+ * that the item is published to.
+ */
+class EncodedItem {
+    private final Item item;
+    private final ByteBuffer[] segments;
+    private final int size;
+    private final boolean empty;
+
+    EncodedItem(Item item, ByteBuffer[] segments, boolean empty) {
+        this.item = item;
+        int size = 0;
+        for (int n = 0; n < segments.length; n++) {
+            segments[n] = segments[n].asReadOnlyBuffer();
+            size += segments[n].remaining();
+        }
+        this.segments = segments;
+        this.size = size;
+        this.empty = empty;
+    }
+
+    /**
+     * The item that was encoded.
+     */
+    Item getItem() {
+        return this.item;
+    }
+
+    /**
+     * The number of encoded bytes.
+     */
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * Whether the exported item has no fields, in which case the channel
+     * field is not preceded by a comma.
+     */
+    boolean isEmpty() {
+        return this.empty;
+    }
+
+    /**
+     * Append buffers containing the encoded bytes to the list.
+     */
+    void appendTo(List<ByteBuffer> out) {
+        for (ByteBuffer segment : this.segments)
+            out.add(segment.duplicate());
+    }
+}
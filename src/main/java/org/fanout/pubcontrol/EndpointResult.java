@@ -0,0 +1,101 @@
+//        EndpointResult.java
+//        ~~~~~~~~~
+//        This module implements the EndpointResult class.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+import java.time.Duration;
+
+/**
+ * The result of publishing to a single endpoint. Contains whether the
+ * publish succeeded, the HTTP status code returned by the endpoint, how long
+ * the publish took and, if the publish failed, the cause of the failure.
+ */
+public class EndpointResult {
+    private String uri;
+    private boolean success;
+    private int statusCode;
+    private Duration latency;
+    private Throwable cause;
+    private boolean coalesced;
+
+    /**
+     * Initialize with the endpoint URI, the outcome, the HTTP status code or
+     * 0 if no response was received, the latency and the cause of the
+     * failure if any.
+     */
+    public EndpointResult(String uri, boolean success, int statusCode,
+            Duration latency, Throwable cause) {
+        this.uri = uri;
+        this.success = success;
+        this.statusCode = statusCode;
+        this.latency = latency;
+        this.cause = cause;
+    }
+
+    /**
+     * Initialize with the endpoint URI, the outcome, the HTTP status code or
+     * 0 if no response was received, the latency, the cause of the failure
+     * if any and whether the publish was coalesced.
+     */
+    public EndpointResult(String uri, boolean success, int statusCode,
+            Duration latency, Throwable cause, boolean coalesced) {
+        this(uri, success, statusCode, latency, cause);
+        this.coalesced = coalesced;
+    }
+
+    /**
+     * The URI of the endpoint.
+     */
+    public String getUri() {
+        return this.uri;
+    }
+
+    /**
+     * Whether the publish succeeded.
+     */
+    public boolean isSuccess() {
+        return this.success;
+    }
+
+    /**
+     * The HTTP status code returned by the endpoint or 0 if no response was
+     * received.
+     */
+    public int getStatusCode() {
+        return this.statusCode;
+    }
+
+    /**
+     * How long the publish took.
+     */
+    public Duration getLatency() {
+        return this.latency;
+    }
+
+    /**
+     * Whether the publish was not sent because it was superseded by a later
+     * publish to the same channels or was a duplicate of a recent publish.
+     * A coalesced publish is considered successful.
+     */
+    public boolean isCoalesced() {
+        return this.coalesced;
+    }
+
+    /**
+     * The cause of the failure or null if the publish succeeded.
+     */
+    public Throwable getCause() {
+        return this.cause;
+    }
+
+    /**
+     * The error message of the failure or null if the publish succeeded.
+     */
+    public String getErrorMessage() {
+        return this.cause != null ? this.cause.getMessage() : null;
+    }
+}
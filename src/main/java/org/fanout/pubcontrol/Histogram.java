@@ -0,0 +1,126 @@
+//        Histogram.java
+//        ~~~~~~~~~
+//        This module implements the Histogram class.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread-safe histogram of non-negative values with a fixed memory
+ * footprint. Values are counted in logarithmic buckets that are each split
+ * into eight linear sub-buckets, so percentiles are accurate to within
+ * 12.5% across the whole range of long values. Recording a value does not
+ * allocate.
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record the specified value. Negative values are recorded as 0.
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        this.counts.incrementAndGet(index(value));
+        this.count.increment();
+        this.sum.add(value);
+        long current = this.max.get();
+        while (value > current && !this.max.compareAndSet(current, value))
+            current = this.max.get();
+    }
+
+    /**
+     * The number of recorded values.
+     */
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    /**
+     * The sum of the recorded values.
+     */
+    public long getSum() {
+        return this.sum.sum();
+    }
+
+    /**
+     * The largest recorded value or 0 if no value was recorded.
+     */
+    public long getMax() {
+        return this.max.get();
+    }
+
+    /**
+     * The mean of the recorded values or 0 if no value was recorded.
+     */
+    public double getMean() {
+        long count = this.count.sum();
+        return count > 0 ? (double)this.sum.sum() / count : 0;
+    }
+
+    /**
+     * The value below which the specified percentage of the recorded values
+     * fall, or 0 if no value was recorded. The value is the upper bound of
+     * the bucket that contains the percentile and never exceeds the largest
+     * recorded value.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        for (int n = 0; n < BUCKETS; n++)
+            total += this.counts.get(n);
+        if (total == 0)
+            return 0;
+        long target = Math.max(1, (long)Math.ceil(
+                Math.min(percentile, 100) / 100 * total));
+        long seen = 0;
+        for (int n = 0; n < BUCKETS; n++) {
+            seen += this.counts.get(n);
+            if (seen >= target)
+                return Math.min(upperBound(n), this.max.get());
+        }
+        return this.max.get();
+    }
+
+    /**
+     * Clear all recorded values.
+     */
+    public void reset() {
+        for (int n = 0; n < BUCKETS; n++)
+            this.counts.set(n, 0);
+        this.count.reset();
+        this.sum.reset();
+        this.max.set(0);
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS)
+            return (int)value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) &
+                (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = index % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return ((SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS)) +
+                width - 1;
+    }
+}
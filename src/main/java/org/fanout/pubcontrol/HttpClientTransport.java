@@ -0,0 +1,394 @@
+//        HttpClientTransport.java
+//        ~~~~~~~~~
+//        This module implements the HttpClientTransport class.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * The default Transport implementation which is based on java.net.http.HttpClient.
+ * Connections are kept alive and reused across publishes. The number of
+ * concurrent requests, and therefore the number of pooled HTTP/1.1
+ * connections, is bounded per endpoint. Idle pooled connections are
+ * evicted by the HttpClient connection pool after the keep-alive timeout
+ * configured via the 'jdk.httpclient.keepalive.timeout' system property,
+ * or after the idle timeout of the transport if one is set. A single
+ * transport can be shared by several clients, for example via
+ * PubControl.setTransport, so that they share one connection pool.
+ * An HTTP/2 transport created with newHttp2Transport instead multiplexes
+ * the concurrent requests to an endpoint as streams over a single
+ * connection, which is negotiated via ALPN for https URIs. Endpoints that
+ * do not support HTTP/2 are sent requests using HTTP/1.1. For http URIs
+ * the HttpClient only offers an h2c upgrade along with a request that is
+ * itself sent using HTTP/1.1, and since every publish is a POST with a
+ * body, which servers commonly do not upgrade, publishes to plain http
+ * endpoints should be expected to use HTTP/1.1 connections.
+ */
+public class HttpClientTransport implements Transport {
+    public static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    public static final Duration DEFAULT_REQUEST_TIMEOUT = Duration.ofSeconds(30);
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_ENDPOINT = 16;
+    public static final int DEFAULT_MAX_CONCURRENT_STREAMS = 100;
+
+    private static final ScheduledExecutorService evictionScheduler =
+            createEvictionScheduler();
+
+    private final HttpClient.Version version;
+    private final Duration connectTimeout;
+    private final Duration requestTimeout;
+    private final Lock lock = new ReentrantLock();
+    private HttpClient httpClient;
+    private int inFlight;
+    private boolean used;
+    private long lastUsedNanos;
+    private Duration idleTimeout;
+    private ScheduledFuture<?> eviction;
+    private final int maxConcurrentRequests;
+    private final ConcurrentMap<String, Semaphore> endpointPermits =
+            new ConcurrentHashMap<String, Semaphore>();
+
+    /**
+     * Initialize with the default connect timeout, request timeout and
+     * maximum number of connections per endpoint.
+     */
+    public HttpClientTransport() {
+        this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_REQUEST_TIMEOUT,
+                DEFAULT_MAX_CONNECTIONS_PER_ENDPOINT);
+    }
+
+    /**
+     * Initialize with the specified connect timeout, request timeout and
+     * maximum number of concurrent connections per endpoint. A null timeout
+     * means no timeout.
+     */
+    public HttpClientTransport(Duration connectTimeout, Duration requestTimeout,
+            int maxConnectionsPerEndpoint) {
+        this(HttpClient.Version.HTTP_1_1, connectTimeout, null, requestTimeout,
+                maxConnectionsPerEndpoint);
+    }
+
+    /**
+     * Initialize with an existing HttpClient instance, for example one that
+     * was configured with a custom executor or SSL context. If the
+     * HttpClient uses HTTP/2 then the maximum number of connections per
+     * endpoint bounds the number of concurrent streams instead. An idle
+     * timeout cannot be set on such a transport.
+     */
+    public HttpClientTransport(HttpClient httpClient, Duration requestTimeout,
+            int maxConnectionsPerEndpoint) {
+        this(null, null, httpClient, requestTimeout, maxConnectionsPerEndpoint);
+    }
+
+    /**
+     * An internal constructor that either builds an HttpClient preferring
+     * the specified version or uses the specified HttpClient, in which case
+     * the version is null.
+     */
+    private HttpClientTransport(HttpClient.Version version,
+            Duration connectTimeout, HttpClient httpClient,
+            Duration requestTimeout, int maxConnectionsPerEndpoint) {
+        if (maxConnectionsPerEndpoint < 1)
+            throw new IllegalArgumentException(
+                    "maxConnectionsPerEndpoint must be at least 1");
+        this.version = version;
+        this.connectTimeout = connectTimeout;
+        this.httpClient = httpClient != null ? httpClient :
+                buildHttpClient(version, connectTimeout);
+        this.requestTimeout = requestTimeout;
+        this.maxConcurrentRequests = maxConnectionsPerEndpoint;
+    }
+
+    /**
+     * Create an HTTP/2 transport with the default connect timeout, request
+     * timeout and maximum number of concurrent streams per endpoint.
+     */
+    public static HttpClientTransport newHttp2Transport() {
+        return newHttp2Transport(DEFAULT_CONNECT_TIMEOUT, DEFAULT_REQUEST_TIMEOUT,
+                DEFAULT_MAX_CONCURRENT_STREAMS);
+    }
+
+    /**
+     * Create an HTTP/2 transport with the specified connect timeout, request
+     * timeout and maximum number of concurrent streams per endpoint. A null
+     * timeout means no timeout. The number of streams is also limited by
+     * the endpoint and by the 'jdk.httpclient.maxstreams' system property.
+     * Use setAsyncConcurrency on the client to have as many asynchronous
+     * batches in flight. Only https endpoints can be relied on to be
+     * published to using HTTP/2.
+     */
+    public static HttpClientTransport newHttp2Transport(Duration connectTimeout,
+            Duration requestTimeout, int maxConcurrentStreams) {
+        if (maxConcurrentStreams < 1)
+            throw new IllegalArgumentException(
+                    "maxConcurrentStreams must be at least 1");
+        return new HttpClientTransport(HttpClient.Version.HTTP_2, connectTimeout,
+                null, requestTimeout, maxConcurrentStreams);
+    }
+
+    /**
+     * The HTTP version preferred by the HttpClient of this transport. The
+     * version actually used is negotiated with each endpoint.
+     */
+    public HttpClient.Version getVersion() {
+        this.lock.lock();
+        try {
+            return this.httpClient.version();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Close the pooled connections of this transport once no request has
+     * been sent for the specified timeout, independently of the JVM-wide
+     * 'jdk.httpclient.keepalive.timeout' system property. Connections are
+     * opened again by the next request. The idle connections are closed
+     * right away on JDK 21 and above and otherwise once the underlying
+     * HttpClient is garbage collected. Pass null to remove the idle
+     * timeout, which is the default.
+     */
+    public void setIdleTimeout(Duration idleTimeout) {
+        if (this.version == null)
+            throw new IllegalStateException(
+                    "idle timeout requires a transport that builds its HttpClient");
+        if (idleTimeout != null && (idleTimeout.isZero() || idleTimeout.isNegative()))
+            throw new IllegalArgumentException("idleTimeout must be positive");
+        this.lock.lock();
+        try {
+            if (this.eviction != null)
+                this.eviction.cancel(false);
+            this.eviction = null;
+            this.idleTimeout = idleTimeout;
+            if (idleTimeout != null) {
+                long period = Math.max(idleTimeout.toNanos() / 2, 1);
+                IdleEviction task = new IdleEviction(this);
+                this.eviction = evictionScheduler.scheduleWithFixedDelay(task,
+                        period, period, TimeUnit.NANOSECONDS);
+                task.future = this.eviction;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Send a POST request using the pooled HttpClient. The calling thread
+     * waits for a permit if the maximum number of concurrent connections or
+     * streams to the endpoint is already in use.
+     */
+    public TransportResponse send(URI uri, Map<String, String> headers,
+            List<ByteBuffer> body) throws IOException, InterruptedException {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri)
+                .POST(new ByteBufferBodyPublisher(body));
+        if (this.requestTimeout != null)
+            builder.timeout(this.requestTimeout);
+        for (Map.Entry<String, String> header : headers.entrySet())
+            builder.header(header.getKey(), header.getValue());
+        HttpRequest request = builder.build();
+
+        Semaphore permits = this.getPermits(uri);
+        permits.acquire();
+        HttpResponse<String> response;
+        try {
+            HttpClient httpClient = this.acquireHttpClient();
+            try {
+                response = httpClient.send(request,
+                        HttpResponse.BodyHandlers.ofString());
+            } finally {
+                this.releaseHttpClient();
+            }
+        } finally {
+            permits.release();
+        }
+
+        Map<String, String> responseHeaders = new HashMap<String, String>();
+        for (Map.Entry<String, List<String>> header :
+                response.headers().map().entrySet())
+            if (!header.getValue().isEmpty())
+                responseHeaders.put(header.getKey(), header.getValue().get(0));
+        return new TransportResponse(response.statusCode(), responseHeaders,
+                response.body());
+    }
+
+    /**
+     * An internal method that returns the semaphore bounding the number of
+     * concurrent requests to the scheme, host and port of the URI.
+     */
+    private Semaphore getPermits(URI uri) {
+        String endpoint = uri.getScheme() + "://" + uri.getHost() + ":" +
+                uri.getPort();
+        Semaphore permits = this.endpointPermits.get(endpoint);
+        if (permits == null) {
+            Semaphore created = new Semaphore(this.maxConcurrentRequests);
+            permits = this.endpointPermits.putIfAbsent(endpoint, created);
+            if (permits == null)
+                permits = created;
+        }
+        return permits;
+    }
+
+    /**
+     * An internal method that returns the current HttpClient and counts the
+     * request as in flight so that the HttpClient is not evicted while it
+     * is being used.
+     */
+    private HttpClient acquireHttpClient() {
+        this.lock.lock();
+        try {
+            this.inFlight++;
+            this.used = true;
+            return this.httpClient;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * An internal method that counts a request as no longer in flight.
+     */
+    private void releaseHttpClient() {
+        this.lock.lock();
+        try {
+            this.inFlight--;
+            this.lastUsedNanos = System.nanoTime();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * An internal method that replaces the HttpClient with a new one, and
+     * closes the previous one along with its connections, if no request
+     * was sent for the idle timeout.
+     */
+    private void evictIdle() {
+        HttpClient idle = null;
+        this.lock.lock();
+        try {
+            if (this.idleTimeout == null || !this.used || this.inFlight > 0 ||
+                    System.nanoTime() - this.lastUsedNanos <
+                    this.idleTimeout.toNanos())
+                return;
+            idle = this.httpClient;
+            this.httpClient = buildHttpClient(this.version, this.connectTimeout);
+            this.used = false;
+        } finally {
+            this.lock.unlock();
+        }
+        if (idle instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable)idle).close();
+            } catch (Exception exception) { }
+        }
+    }
+
+    /**
+     * An internal method that creates the scheduler shared by all instances
+     * for evicting idle connections.
+     */
+    private static ScheduledExecutorService createEvictionScheduler() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1,
+                new DaemonThreadFactory("pubcontrol-idle", false));
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+    /**
+     * An internal method that builds an HttpClient instance that prefers
+     * the specified HTTP version.
+     */
+    private static HttpClient buildHttpClient(HttpClient.Version version,
+            Duration connectTimeout) {
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(version)
+                .followRedirects(HttpClient.Redirect.NEVER);
+        if (connectTimeout != null)
+            builder.connectTimeout(connectTimeout);
+        return builder.build();
+    }
+
+    /**
+     * The periodic idle check of a transport, which only weakly references
+     * the transport and cancels itself once the transport is collected.
+     */
+    private static class IdleEviction implements Runnable {
+        private final WeakReference<HttpClientTransport> transport;
+        volatile ScheduledFuture<?> future;
+
+        IdleEviction(HttpClientTransport transport) {
+            this.transport = new WeakReference<HttpClientTransport>(transport);
+        }
+
+        public void run() {
+            HttpClientTransport transport = this.transport.get();
+            if (transport != null) {
+                transport.evictIdle();
+            } else if (this.future != null) {
+                this.future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * A body publisher that sends a list of buffers with a precomputed
+     * content length without copying them into a single array.
+     */
+    private static class ByteBufferBodyPublisher implements HttpRequest.BodyPublisher {
+        private final List<ByteBuffer> buffers;
+        private final long contentLength;
+
+        ByteBufferBodyPublisher(List<ByteBuffer> buffers) {
+            this.buffers = buffers;
+            long contentLength = 0;
+            for (ByteBuffer buffer : buffers)
+                contentLength += buffer.remaining();
+            this.contentLength = contentLength;
+        }
+
+        public long contentLength() {
+            return this.contentLength;
+        }
+
+        public void subscribe(final Flow.Subscriber<? super ByteBuffer> subscriber) {
+            final Iterator<ByteBuffer> iterator = this.buffers.iterator();
+            subscriber.onSubscribe(new Flow.Subscription() {
+                private boolean done;
+
+                public synchronized void request(long n) {
+                    if (this.done)
+                        return;
+                    if (n <= 0) {
+                        this.done = true;
+                        subscriber.onError(new IllegalArgumentException(
+                                "non-positive subscription request"));
+                        return;
+                    }
+                    while (n-- > 0 && !this.done && iterator.hasNext())
+                        subscriber.onNext(iterator.next().duplicate());
+                    if (!this.done && !iterator.hasNext()) {
+                        this.done = true;
+                        subscriber.onComplete();
+                    }
+                }
+
+                public synchronized void cancel() {
+                    this.done = true;
+                }
+            });
+        }
+    }
+}
@@ -16,7 +16,7 @@ import java.util.*;
  * type of format. An Item instance is then serialized into a hash that is
  * used for publishing to clients.
  */
-public class Item {
+public class Item implements Cloneable {
     private List<Format> formats;
     private String id;
     private String prevId;
@@ -38,6 +38,32 @@ public class Item {
      * was specified then an error will be raised.
      */
     public Map<String, Object> export() {
+        this.checkFormats();
+
+        Map<String, Object> out = new HashMap<String, Object>();
+        if (this.id != null && !this.id.isEmpty())
+            out.put("id", this.id);
+        if (this.prevId != null && !this.prevId.isEmpty())
+            out.put("prev-id", this.prevId);
+
+        for (Format format : this.formats)
+            out.put(format.name(), format.export());
+
+        return out;
+    }
+
+    /**
+     * An internal method that returns the formats of this item.
+     */
+    List<Format> getFormats() {
+        return this.formats;
+    }
+
+    /**
+     * An internal method that raises an error if more than one instance of
+     * the same type of Format implementation was specified.
+     */
+    void checkFormats() {
         List<Class> formatTypes = new ArrayList<Class>();
         for (Format format : this.formats) {
             if (formatTypes.contains(format.getClass()))
@@ -47,16 +73,35 @@ public class Item {
                         " specified");
             formatTypes.add(format.getClass());
         }
+    }
 
-        Map<String, Object> out = new HashMap<String, Object>();
-        if (this.id != null && !this.id.isEmpty())
-            out.put("id", this.id);
-        if (this.prevId != null && !this.prevId.isEmpty())
-            out.put("prev-id", this.prevId);
+    /**
+     * An internal method that returns the ID of this item or null.
+     */
+    String getId() {
+        return this.id;
+    }
 
-        for (Format format : this.formats)
-            out.put(format.name(), format.export());
+    /**
+     * An internal method that returns the previous ID of this item or null.
+     */
+    String getPrevId() {
+        return this.prevId;
+    }
 
-        return out;
+    /**
+     * An internal method that returns a copy of this item with the
+     * specified previous ID. The copy is a shallow clone, so it has the
+     * same class as this item and keeps the export behavior of subclasses.
+     */
+    Item withPrevId(String prevId) {
+        Item item;
+        try {
+            item = (Item)this.clone();
+        } catch (CloneNotSupportedException exception) {
+            throw new IllegalStateException(exception);
+        }
+        item.prevId = prevId;
+        return item;
     }
 }
@@ -0,0 +1,226 @@
+//        ItemEncoder.java
+//        ~~~~~~~~~
+//        This module implements the ItemEncoder class.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Used internally to encode items as JSON for publishing. An item is
+ * written as UTF-8 directly into a reusable per-thread buffer once per
+ * publish, and only the final encoded bytes are copied out. Formats that
+ * implement StreamingFormat write themselves to the buffer and formats that
+ * implement PreEncodedFormat are included as they are, while other formats
+ * are exported and serialized with Gson. The
+ * encoded item is then shared by every channel it is published to, which
+ * only adds the channel field, and the publish request body is assembled
+ * from the encoded items without copying them again.
+ */
+class ItemEncoder {
+    private static final Gson gson = new Gson();
+    private static final int MAX_RETAINED_BUFFER_SIZE = 256 * 1024;
+    private static final ByteBuffer CONTENT_PREFIX = ByteBuffer.wrap(
+            "{\"items\":[".getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    private static final ByteBuffer CONTENT_SEPARATOR = ByteBuffer.wrap(
+            ",".getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    private static final ByteBuffer CONTENT_SUFFIX = ByteBuffer.wrap(
+            "]}".getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    private static final ThreadLocal<EncodeBuffer> buffers =
+            new ThreadLocal<EncodeBuffer>() {
+                protected EncodeBuffer initialValue() {
+                    return new EncodeBuffer();
+                }
+            };
+
+    private ItemEncoder() { }
+
+    /**
+     * Export and encode the item once. The result can be published to any
+     * number of channels and clients.
+     */
+    static EncodedItem encode(Item item) {
+        EncodeBuffer buffer = buffers.get();
+        buffer.reset();
+        boolean completed = false;
+        try {
+            // Subclasses may override export, in which case it is used as is.
+            EncodedItem encoded = item.getClass() == Item.class ?
+                    writeItem(item, buffer) : writeExport(item, buffer);
+            completed = true;
+            return encoded;
+        } catch (IOException exception) {
+            throw new JsonIOException(exception);
+        } finally {
+            // A failed encoding may leave characters behind in the writer.
+            if (!completed || buffer.capacity() > MAX_RETAINED_BUFFER_SIZE)
+                buffers.remove();
+        }
+    }
+
+    /**
+     * Return buffers containing the encoded item followed by the channel
+     * field for each of the channels as comma-separated JSON objects. The
+     * encoded item itself is shared rather than copied for each channel.
+     */
+    static List<ByteBuffer> encodeChannels(EncodedItem item,
+            List<String> channels) {
+        List<ByteBuffer> out = new ArrayList<ByteBuffer>(channels.size() * 3);
+        for (String channel : channels) {
+            if (out.size() > 0)
+                out.add(CONTENT_SEPARATOR.duplicate());
+            item.appendTo(out);
+            String field = (item.isEmpty() ? "\"channel\":" : ",\"channel\":") +
+                    gson.toJson(channel) + "}";
+            out.add(ByteBuffer.wrap(field.getBytes(StandardCharsets.UTF_8)));
+        }
+        return out;
+    }
+
+    /**
+     * Build the body of a publish request from the encoded items of one or
+     * more requests. The returned buffers wrap the encoded items.
+     */
+    static List<ByteBuffer> buildContent(List<List<ByteBuffer>> items) {
+        int count = 2;
+        for (List<ByteBuffer> encoded : items)
+            count += encoded.size() + 1;
+        List<ByteBuffer> content = new ArrayList<ByteBuffer>(count);
+        content.add(CONTENT_PREFIX.duplicate());
+        boolean first = true;
+        for (List<ByteBuffer> encoded : items) {
+            if (encoded.isEmpty())
+                continue;
+            if (!first)
+                content.add(CONTENT_SEPARATOR.duplicate());
+            for (ByteBuffer buffer : encoded)
+                content.add(buffer.duplicate());
+            first = false;
+        }
+        content.add(CONTENT_SUFFIX.duplicate());
+        return content;
+    }
+
+    /**
+     * An internal method that writes the fields of the item one format at
+     * a time without building the exported map. The encoding is split into
+     * segments around the encoded bytes of pre-encoded formats.
+     */
+    private static EncodedItem writeItem(Item item, EncodeBuffer buffer)
+            throws IOException {
+        item.checkFormats();
+        List<ByteBuffer> segments = new ArrayList<ByteBuffer>(1);
+        Writer writer = buffer.writer;
+        boolean empty = true;
+        writer.write('{');
+        String id = item.getId();
+        if (id != null && !id.isEmpty()) {
+            writeName(writer, "id", empty);
+            writeString(writer, id);
+            empty = false;
+        }
+        String prevId = item.getPrevId();
+        if (prevId != null && !prevId.isEmpty()) {
+            writeName(writer, "prev-id", empty);
+            writeString(writer, prevId);
+            empty = false;
+        }
+        for (Format format : item.getFormats()) {
+            if (format instanceof PreEncodedFormat) {
+                ByteBuffer encoded = ((PreEncodedFormat)format).getEncoded();
+                if (encoded == null)
+                    continue;
+                writeName(writer, format.name(), empty);
+                writer.flush();
+                segments.add(ByteBuffer.wrap(Arrays.copyOf(buffer.array(),
+                        buffer.size())));
+                segments.add(encoded.duplicate());
+                buffer.reset();
+            } else if (format instanceof StreamingFormat) {
+                writeName(writer, format.name(), empty);
+                JsonWriter json = newJsonWriter(writer);
+                ((StreamingFormat)format).writeJson(json);
+            } else {
+                Object export = format.export();
+                if (export == null)
+                    continue;
+                writeName(writer, format.name(), empty);
+                gson.toJson(export, export.getClass(), newJsonWriter(writer));
+            }
+            empty = false;
+        }
+        // Leave out the closing brace so that the channel can be appended.
+        writer.flush();
+        segments.add(ByteBuffer.wrap(Arrays.copyOf(buffer.array(),
+                buffer.size())));
+        return new EncodedItem(item, segments.toArray(new ByteBuffer[0]), empty);
+    }
+
+    /**
+     * An internal method that serializes the exported map of the item.
+     */
+    private static EncodedItem writeExport(Item item, EncodeBuffer buffer)
+            throws IOException {
+        Map<String, Object> export = item.export();
+        gson.toJson(export, export.getClass(), new JsonWriter(buffer.writer));
+        buffer.writer.flush();
+        // Leave out the closing brace so that the channel can be appended.
+        byte[] body = Arrays.copyOf(buffer.array(), buffer.size() - 1);
+        return new EncodedItem(item, new ByteBuffer[] {ByteBuffer.wrap(body)},
+                export.isEmpty());
+    }
+
+    private static void writeName(Writer writer, String name, boolean first)
+            throws IOException {
+        if (!first)
+            writer.write(',');
+        writeString(writer, name);
+        writer.write(':');
+    }
+
+    private static void writeString(Writer writer, String value)
+            throws IOException {
+        newJsonWriter(writer).value(value);
+    }
+
+    /**
+     * An internal method that creates a writer for a single JSON value
+     * with the same settings that Gson uses by default.
+     */
+    private static JsonWriter newJsonWriter(Writer writer) {
+        JsonWriter json = new JsonWriter(writer);
+        json.setLenient(true);
+        json.setHtmlSafe(true);
+        json.setSerializeNulls(false);
+        return json;
+    }
+
+    /**
+     * A growable byte buffer with a UTF-8 writer on top of it that is
+     * reused across encodings on the same thread.
+     */
+    private static class EncodeBuffer extends ByteArrayOutputStream {
+        final Writer writer = new OutputStreamWriter(this, StandardCharsets.UTF_8);
+
+        EncodeBuffer() {
+            super(1024);
+        }
+
+        int capacity() {
+            return this.buf.length;
+        }
+
+        byte[] array() {
+            return this.buf;
+        }
+    }
+}
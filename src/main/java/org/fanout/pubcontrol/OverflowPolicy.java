@@ -0,0 +1,41 @@
+//        OverflowPolicy.java
+//        ~~~~~~~~~
+//        This module implements the OverflowPolicy enum.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+/**
+ * Determines what happens when an asynchronous publish is made while the
+ * async queue of a PubControlClient instance is at capacity. Requests that
+ * are not queued have their callback completed with a failed result.
+ */
+public enum OverflowPolicy {
+    /**
+     * Block the publishing thread until there is room in the queue.
+     */
+    BLOCK,
+
+    /**
+     * Block the publishing thread until there is room in the queue or the
+     * configured timeout elapses, in which case the new request fails.
+     */
+    BLOCK_WITH_TIMEOUT,
+
+    /**
+     * Drop the new request.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Drop the oldest queued request to make room for the new request.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Fail the new request immediately on the publishing thread.
+     */
+    FAIL
+}
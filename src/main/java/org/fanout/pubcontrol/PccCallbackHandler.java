@@ -7,6 +7,9 @@
 
 package org.fanout.pubcontrol;
 
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
 /**
  * Used internally for facilitating callbacks with PubControl instances.
  * A PubControl instance can potentially contain many
@@ -14,22 +17,23 @@ package org.fanout.pubcontrol;
  * of successful publishes relative to the total number of PubControlClient
  * instances. A failure to publish in any of the PubControlClient instances
  * will result in a failed result passed to the callback method and the error
- * from the first encountered failure.
+ * from the first encountered failure. This class is thread-safe and
+ * lock-free, and the callback is called exactly once.
  */
 public class PccCallbackHandler implements PublishCallback {
-    private int numCalls;
-    private PublishCallback callback;
-    private boolean success;
-    private String firstErrorMessage;
+    private final int numCalls;
+    private final PublishCallback callback;
+    private final AtomicInteger arrivals = new AtomicInteger();
+    private final AtomicInteger completions = new AtomicInteger();
+    private final AtomicReferenceArray<Outcome> outcomes;
 
     /**
      * Initialize with the number of callback calls and the callback.
      */
     public PccCallbackHandler(int numCalls, PublishCallback callback) {
-        this.numCalls = numCalls;
+        this.numCalls = Math.max(numCalls, 1);
         this.callback = callback;
-        this.success = true;
-        this.firstErrorMessage = null;
+        this.outcomes = new AtomicReferenceArray<Outcome>(this.numCalls);
     }
 
     /**
@@ -37,17 +41,73 @@ public class PccCallbackHandler implements PublishCallback {
      * This method tracks the number of publishes performed and
      * when all publishes are complete it will call the callback method
      * originally specified by the consumer. If publishing failures are
-     * encountered only the first error is saved and reported to the callback
-     * method.
+     * encountered only the first error is reported to the callback method,
+     * while all of them are available via getErrorMessages. This method may
+     * be called concurrently from several threads.
      */
     public void completed(boolean success, String message) {
-        if (!success && this.success) {
-            this.success = false;
-            this.firstErrorMessage = message;
+        int index = this.arrivals.getAndIncrement();
+        if (index >= this.numCalls)
+            return;
+        this.outcomes.set(index, new Outcome(success, message));
+        if (this.completions.incrementAndGet() == this.numCalls) {
+            String firstErrorMessage = null;
+            boolean allSucceeded = true;
+            for (int n = 0; n < this.numCalls; n++) {
+                Outcome outcome = this.outcomes.get(n);
+                if (!outcome.success && allSucceeded) {
+                    allSucceeded = false;
+                    firstErrorMessage = outcome.message;
+                }
+            }
+            this.callback.completed(allSucceeded, firstErrorMessage);
+        }
+    }
+
+    /**
+     * Whether all of the publishes have completed.
+     */
+    public boolean isComplete() {
+        return this.completions.get() >= this.numCalls;
+    }
+
+    /**
+     * The number of publishes that have completed successfully so far.
+     */
+    public int getSuccessCount() {
+        int count = 0;
+        for (int n = 0; n < this.numCalls; n++) {
+            Outcome outcome = this.outcomes.get(n);
+            if (outcome != null && outcome.success)
+                count++;
         }
-        this.numCalls -= 1;
-        if (this.numCalls <= 0) {
-            this.callback.completed(this.success, this.firstErrorMessage);
+        return count;
+    }
+
+    /**
+     * The error messages of all publishes that have failed so far, in the
+     * order in which they completed.
+     */
+    public List<String> getErrorMessages() {
+        List<String> messages = new ArrayList<String>();
+        for (int n = 0; n < this.numCalls; n++) {
+            Outcome outcome = this.outcomes.get(n);
+            if (outcome != null && !outcome.success)
+                messages.add(outcome.message);
+        }
+        return messages;
+    }
+
+    /**
+     * The outcome of a single publish.
+     */
+    private static class Outcome {
+        final boolean success;
+        final String message;
+
+        Outcome(boolean success, String message) {
+            this.success = success;
+            this.message = message;
         }
     }
 }
@@ -0,0 +1,29 @@
+//        PreEncodedFormat.java
+//        ~~~~~~~~~
+//        This module implements the PreEncodedFormat interface.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An optional extension of Format for formats that supply their exported
+ * value already encoded as JSON, for example a cached http-stream body that
+ * is published many times. When an item is published the encoded bytes are
+ * included in the request body as they are, without being copied or
+ * validated. The export method is still used by Item.export and must
+ * produce an equivalent object.
+ */
+public interface PreEncodedFormat extends Format {
+
+    /**
+     * The exported value of the format as a single UTF-8 encoded JSON
+     * value between the position and the limit of the buffer. The content
+     * of the buffer must not change afterwards, and the same buffer may be
+     * returned for every call.
+     */
+    ByteBuffer getEncoded();
+}
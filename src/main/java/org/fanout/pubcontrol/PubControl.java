@@ -7,39 +7,148 @@
 
 package org.fanout.pubcontrol;
 
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
 
 /**
  * Allows a consumer to manage a set of PubControlClient instances.
  * A PubControl instance can be configured either using a hash or
  * array of hashes containing configuration information
- * or by manually adding PubControlClient instances.
+ * or by manually adding PubControlClient instances. By default every item
+ * is published to every client. With sharding enabled each channel is
+ * instead published only to the client that owns it according to
+ * consistent hashing of the client URIs.
  */
 public class PubControl {
-    private List<PubControlClient> clients;
+    /**
+     * The default number of virtual nodes per client when sharding.
+     */
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private final Set<PubControlClient> draining =
+            ConcurrentHashMap.<PubControlClient>newKeySet();
+    private volatile Clients clients = new Clients(
+            Collections.<PubControlClient>emptyList(), 0);
+    private final Object executorLock = new Object();
+    private volatile Executor executor;
+    private Transport transport;
+    private final Map<PubControlClient, Map<String, Object>> configEntries =
+            new HashMap<PubControlClient, Map<String, Object>>();
 
     /**
      * Initialize with or without a configuration. A configuration can be applied
      * after initialization via the apply_config method.
      */
     public PubControl(List<Map<String, Object>> config) {
-        this.clients = new ArrayList<PubControlClient>();
+        this(config, null);
+    }
+
+    /**
+     * Initialize with or without a configuration and with the transport
+     * shared by the clients created from configurations. See setTransport.
+     */
+    public PubControl(List<Map<String, Object>> config, Transport transport) {
+        this.transport = transport;
         if (config != null)
             applyConfig(config);
     }
 
     /**
-     * Remove all of the configured PubControlClient instances.
+     * Set the transport shared by the clients that are created from
+     * configurations afterwards, for example an HttpClientTransport with an
+     * idle timeout. Clients that were added directly keep their own
+     * transport. By default a single HttpClientTransport is created and
+     * shared by all clients created from configurations, so they share one
+     * connection pool.
+     */
+    public synchronized void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Set the executor used by publishParallel to publish to the clients
+     * concurrently and by finish with a timeout to finish the clients
+     * concurrently. By default an internal pool of daemon threads is used.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Enable or disable sharding using the default number of virtual nodes
+     * per client.
+     */
+    public void setSharding(boolean enabled) {
+        this.setSharding(enabled, DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * Enable or disable sharding. While enabled, the channels of a publish
+     * are mapped to clients using consistent hashing with the specified
+     * number of virtual nodes per client, and each client is only sent the
+     * channels it owns in a single request. Adding or removing a client only
+     * remaps the channels it gains or loses. The clients must have distinct
+     * URIs.
+     */
+    public synchronized void setSharding(boolean enabled, int virtualNodes) {
+        if (enabled && virtualNodes < 1)
+            throw new IllegalArgumentException("virtualNodes must be at least 1");
+        this.clients = new Clients(this.clients.list, enabled ? virtualNodes : 0);
+    }
+
+    /**
+     * The client that owns the channel when sharding, or null if sharding is
+     * disabled or there are no clients.
+     */
+    public PubControlClient getClientForChannel(String channel) {
+        ConsistentHashRing ring = this.clients.ring;
+        return ring != null ? ring.get(channel) : null;
+    }
+
+    /**
+     * The configured PubControlClient instances. The returned list is an
+     * immutable snapshot that is not affected by later changes.
+     */
+    public List<PubControlClient> getClients() {
+        return this.clients.list;
+    }
+
+    /**
+     * Remove all of the configured PubControlClient instances. Publishes
+     * that were already queued by the clients are completed in the
+     * background.
      */
-    public void removeAllClients() {
-        this.clients.clear();
+    public synchronized void removeAllClients() {
+        List<PubControlClient> removed = this.clients.list;
+        this.configEntries.clear();
+        this.update(Collections.<PubControlClient>emptyList());
+        this.drain(removed);
     }
 
     /**
      * Add the specified PubControlClient instance.
      */
-    public void addClient(PubControlClient client) {
-        this.clients.add(client);
+    public synchronized void addClient(PubControlClient client) {
+        List<PubControlClient> list =
+                new ArrayList<PubControlClient>(this.clients.list);
+        list.add(client);
+        this.update(list);
+    }
+
+    /**
+     * Remove the specified PubControlClient instance. Publishes that were
+     * already queued by the client are completed in the background.
+     */
+    public synchronized void removeClient(PubControlClient client) {
+        List<PubControlClient> list =
+                new ArrayList<PubControlClient>(this.clients.list);
+        if (!list.remove(client))
+            return;
+        this.configEntries.remove(client);
+        this.update(list);
+        this.drain(Collections.singletonList(client));
     }
 
     /**
@@ -47,57 +156,493 @@ public class PubControl {
      * configuration object can either be a hash or an array of hashes where
      * each hash corresponds to a single PubControlClient instance. Each hash
      * will be parsed and a PubControlClient will be created either using just
-     * a URI or a URI and JWT authentication information.
+     * a URI or a URI and JWT authentication information. The clients are
+     * added to the clients that are already configured.
      */
-    @SuppressWarnings({"unchecked"})
-    public void applyConfig(List<Map<String, Object>> config) {
+    public synchronized void applyConfig(List<Map<String, Object>> config) {
+        List<PubControlClient> list =
+                new ArrayList<PubControlClient>(this.clients.list);
         for (Map<String, Object> entry : config) {
-            String uri = null;
-            if (entry.get("uri") != null)
-                uri = (String)entry.get("uri");
-            PubControlClient client = new PubControlClient(uri);
-            Object iss = entry.get("iss");
-            Object key = entry.get("key");
-            if (iss != null && key != null) {
-                Map<String, Object> claims = new HashMap<String, Object>();
-                claims.put("iss", (String)iss);
-                client.setAuthJwt(claims, (byte[])key);
-            } else if (key != null) {
-                client.setAuthBearer((String)key);
-            }
-            this.clients.add(client);
+            PubControlClient client = new PubControlClient(
+                    (String)entry.get("uri"), this.getTransport());
+            applyAuth(client, entry);
+            this.configEntries.put(client, new HashMap<String, Object>(entry));
+            list.add(client);
+        }
+        this.update(list);
+    }
+
+    /**
+     * Replace the configured PubControlClient instances with the clients of
+     * the specified configuration, which has the same form as for
+     * applyConfig. An existing client whose URI appears in the
+     * configuration is kept along with its connections and queued
+     * publishes. Its authentication is updated to that of the configuration
+     * only if the authentication of its configuration entry changed, so
+     * that a cached JWT is not re-signed on every reload. Clients are
+     * created for the other URIs, and clients whose URI no longer appears
+     * are removed and complete their queued publishes in the background.
+     * Concurrent publishes see either the previous or the new set of
+     * clients and are never blocked.
+     */
+    public synchronized void reloadConfig(List<Map<String, Object>> config) {
+        Map<String, PubControlClient> existing =
+                new HashMap<String, PubControlClient>();
+        for (PubControlClient client : this.clients.list)
+            existing.putIfAbsent(client.getUri(), client);
+        List<PubControlClient> list = new ArrayList<PubControlClient>();
+        Map<PubControlClient, Map<String, Object>> entries =
+                new HashMap<PubControlClient, Map<String, Object>>();
+        for (Map<String, Object> entry : config) {
+            String uri = (String)entry.get("uri");
+            PubControlClient client = existing.remove(uri);
+            if (client == null)
+                client = new PubControlClient(uri, this.getTransport());
+            Map<String, Object> previous = this.configEntries.get(client);
+            if (previous == null || !sameAuth(previous, entry))
+                applyAuth(client, entry);
+            entries.put(client, new HashMap<String, Object>(entry));
+            list.add(client);
         }
+        this.configEntries.clear();
+        this.configEntries.putAll(entries);
+        List<PubControlClient> removed = new ArrayList<PubControlClient>();
+        for (PubControlClient client : this.clients.list) {
+            if (!list.contains(client))
+                removed.add(client);
+        }
+        this.update(list);
+        this.drain(removed);
     }
 
     /**
-     * Ensure that all asynchronous publishing is complete prior to returning.
+     * Ensure that all asynchronous publishing is complete prior to returning,
+     * including that of removed clients that are still completing their
+     * queued publishes. No client lingers while this method is waiting.
      */
     public void finish() {
-        for (PubControlClient client : this.clients) {
-            client.finish();
+        List<PubControlClient> clients = this.allClients();
+        for (PubControlClient client : clients)
+            client.beginFinish();
+        try {
+            for (PubControlClient client : clients)
+                client.finish();
+        } finally {
+            for (PubControlClient client : clients)
+                client.endFinish();
         }
     }
 
+    /**
+     * Wait at most the specified timeout for the asynchronous publishing of
+     * all clients, including removed clients that are still completing their
+     * queued publishes, then abandon the publishes that are still queued and
+     * return the combined outcome. Lingering is stopped on every client
+     * before any is waited on, and the clients then drain their queues in
+     * parallel against a shared deadline, so the call returns within the
+     * timeout however many clients are slow. An interrupt does not cut the
+     * wait short, but the interrupt status is kept. Each abandoned
+     * publication carries the URI of its client, which is the client it
+     * should be published again through. See PubControlClient.finish.
+     */
+    public ShutdownResult finish(Duration timeout) {
+        final long deadline = System.nanoTime() + timeout.toNanos();
+        List<PubControlClient> clients = this.allClients();
+        for (PubControlClient client : clients)
+            client.beginFinish();
+        try {
+            Executor executor = this.getExecutor();
+            List<FutureTask<ShutdownResult>> tasks =
+                    new ArrayList<FutureTask<ShutdownResult>>();
+            for (final PubControlClient client : clients) {
+                FutureTask<ShutdownResult> task = new FutureTask<ShutdownResult>(
+                        new Callable<ShutdownResult>() {
+                            public ShutdownResult call() {
+                                return client.finish(Duration.ofNanos(
+                                        Math.max(deadline - System.nanoTime(), 0)));
+                            }
+                        });
+                tasks.add(task);
+                try {
+                    executor.execute(task);
+                } catch (RejectedExecutionException exception) {
+                    task.run();
+                }
+            }
+            return ShutdownResult.combine(this.awaitResults(clients, tasks,
+                    deadline));
+        } finally {
+            for (PubControlClient client : clients)
+                client.endFinish();
+        }
+    }
+
+    /**
+     * Abandon the queued asynchronous publishes of all clients, including
+     * removed clients that are still completing their queued publishes,
+     * without waiting for them and return the combined outcome. See
+     * PubControlClient.shutdownNow.
+     */
+    public ShutdownResult shutdownNow() {
+        List<ShutdownResult> results = new ArrayList<ShutdownResult>();
+        for (PubControlClient client : this.allClients())
+            results.add(client.shutdownNow());
+        return ShutdownResult.combine(results);
+    }
+
     /**
      * The synchronous publish method for publishing an item to the specified channels.
+     * The item is encoded once and the encoding is shared by all clients.
      */
     public void publish(List<String> channels, Item item)
             throws PublishFailedException {
-        for (PubControlClient client : this.clients) {
-            client.publish(channels, item);
+        EncodedItem encoded = ItemEncoder.encode(item);
+        for (Map.Entry<PubControlClient, List<String>> route :
+                this.route(channels).entrySet()) {
+            route.getKey().publish(route.getValue(), encoded);
         }
     }
 
+    /**
+     * Synchronously publish an item to the specified channels on all clients
+     * in parallel and wait for all of them to complete or for the timeout to
+     * elapse. A failure on one client does not prevent publishing to the
+     * others. Clients that did not complete within the timeout are reported
+     * as failed.
+     */
+    public PublishResult publishParallel(final List<String> channels, Item item,
+            Duration timeout) {
+        final EncodedItem encoded = ItemEncoder.encode(item);
+        Map<PubControlClient, List<String>> routes = this.route(channels);
+        List<PubControlClient> clients =
+                new ArrayList<PubControlClient>(routes.keySet());
+        Executor executor = this.getExecutor();
+        List<FutureTask<EndpointResult>> tasks =
+                new ArrayList<FutureTask<EndpointResult>>();
+        for (final Map.Entry<PubControlClient, List<String>> route :
+                routes.entrySet()) {
+            FutureTask<EndpointResult> task = new FutureTask<EndpointResult>(
+                    new Callable<EndpointResult>() {
+                        public EndpointResult call() {
+                            return route.getKey().publishForResult(
+                                    route.getValue(), encoded);
+                        }
+                    });
+            tasks.add(task);
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException exception) {
+                task.run();
+            }
+        }
+        long deadline = System.nanoTime() + timeout.toNanos();
+        List<EndpointResult> results = new ArrayList<EndpointResult>();
+        for (int n = 0; n < tasks.size(); n++) {
+            FutureTask<EndpointResult> task = tasks.get(n);
+            PubControlClient client = clients.get(n);
+            try {
+                results.add(task.get(deadline - System.nanoTime(),
+                        TimeUnit.NANOSECONDS));
+            } catch (TimeoutException exception) {
+                task.cancel(true);
+                results.add(new EndpointResult(client.getUri(), false, 0,
+                        timeout, new PublishFailedException(
+                        "failed to publish: timed out")));
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                task.cancel(true);
+                results.add(new EndpointResult(client.getUri(), false, 0,
+                        timeout, new PublishFailedException(
+                        "failed to publish: interrupted")));
+            } catch (ExecutionException exception) {
+                results.add(new EndpointResult(client.getUri(), false, 0,
+                        Duration.ZERO, new PublishFailedException(
+                        "failed to publish: " + exception.getCause().getMessage(),
+                        exception.getCause())));
+            } catch (CancellationException exception) {
+                results.add(new EndpointResult(client.getUri(), false, 0,
+                        Duration.ZERO, new PublishFailedException(
+                        "failed to publish: cancelled")));
+            }
+        }
+        return new PublishResult(results);
+    }
+
     /**
      * The asynchronous publish method for publishing an item to the specified channels.
      * Optionally provide a callback to be executed after publishing is complete.
+     * The item is encoded once and the encoding is shared by all clients.
      */
     public void publishAsync(List<String> channels, Item item,
             PublishCallback callback) {
+        Map<PubControlClient, List<String>> routes = this.route(channels);
         PublishCallback cb = null;
         if (callback != null)
-            cb = new PccCallbackHandler(this.clients.size(), callback);
-        for (PubControlClient client : this.clients)
-            client.publishAsync(channels, item, cb);
+            cb = new PccCallbackHandler(routes.size(), callback);
+        EncodedItem encoded = ItemEncoder.encode(item);
+        for (Map.Entry<PubControlClient, List<String>> route : routes.entrySet())
+            route.getKey().publishAsync(route.getValue(), encoded, cb, null);
+    }
+
+    /**
+     * The asynchronous publish method for publishing an item to the specified
+     * channels which returns a future that is completed with the result of
+     * every client once publishing to all of them is complete. The future is
+     * never completed on a publish worker thread.
+     */
+    public CompletableFuture<PublishResult> publishAsync(List<String> channels,
+            Item item) {
+        EncodedItem encoded = ItemEncoder.encode(item);
+        final List<CompletableFuture<EndpointResult>> futures =
+                new ArrayList<CompletableFuture<EndpointResult>>();
+        for (Map.Entry<PubControlClient, List<String>> route :
+                this.route(channels).entrySet()) {
+            CompletableFuture<EndpointResult> future =
+                    new CompletableFuture<EndpointResult>();
+            futures.add(future);
+            route.getKey().publishAsync(route.getValue(), encoded, null, future);
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                .thenApply(new Function<Void, PublishResult>() {
+                    public PublishResult apply(Void ignored) {
+                        List<EndpointResult> results = new ArrayList<EndpointResult>();
+                        for (CompletableFuture<EndpointResult> future : futures)
+                            results.add(future.join());
+                        return new PublishResult(results);
+                    }
+                });
+    }
+
+    /**
+     * Create a processor that publishes a stream of publications
+     * asynchronously to the clients with backpressure. The window is the
+     * smallest default window of the clients at the time of the call.
+     */
+    public PublishProcessor newPublishProcessor() {
+        int window = Integer.MAX_VALUE;
+        for (PubControlClient client : this.clients.list)
+            window = Math.min(window, client.getPublishWindow());
+        if (window == Integer.MAX_VALUE)
+            window = 2 * AsyncPublisher.DEFAULT_BATCH_MAX_ITEMS;
+        return this.newPublishProcessor(window);
+    }
+
+    /**
+     * Create a processor that publishes a stream of publications
+     * asynchronously to the clients with backpressure, with at most the
+     * specified number of publications outstanding at any time.
+     */
+    public PublishProcessor newPublishProcessor(int window) {
+        return new PublishProcessor(
+                new Function<Publication, CompletableFuture<PublishResult>>() {
+                    public CompletableFuture<PublishResult> apply(
+                            Publication publication) {
+                        return publishAsync(publication.getChannels(),
+                                publication.getItem());
+                    }
+                }, window);
+    }
+
+    /**
+     * An internal method that waits until the deadline for the shutdown of
+     * each client to complete and returns their outcomes. The shutdown of a
+     * client that did not complete by the deadline, for example because the
+     * executor did not run it in time, is cancelled and the client is shut
+     * down immediately instead. A shutdown that already started is waited
+     * for since its wait is bounded by the deadline. An interrupt is
+     * deferred until all outcomes are known and the interrupt status is
+     * then restored.
+     */
+    private List<ShutdownResult> awaitResults(List<PubControlClient> clients,
+            List<FutureTask<ShutdownResult>> tasks, long deadline) {
+        List<ShutdownResult> results = new ArrayList<ShutdownResult>();
+        boolean interrupted = false;
+        for (int n = 0; n < tasks.size(); n++) {
+            FutureTask<ShutdownResult> task = tasks.get(n);
+            boolean started = false;
+            while (true) {
+                try {
+                    results.add(started ? task.get() : task.get(
+                            deadline - System.nanoTime(), TimeUnit.NANOSECONDS));
+                    break;
+                } catch (InterruptedException exception) {
+                    interrupted = true;
+                } catch (TimeoutException exception) {
+                    if (task.cancel(false)) {
+                        results.add(clients.get(n).shutdownNow());
+                        break;
+                    }
+                    started = true;
+                } catch (ExecutionException exception) {
+                    Throwable cause = exception.getCause();
+                    if (cause instanceof RuntimeException)
+                        throw (RuntimeException)cause;
+                    throw (Error)cause;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        return results;
+    }
+
+    /**
+     * An internal method that returns the channels to publish to for each
+     * client that is published to, in the order of the clients. Without
+     * sharding every client is published to with all of the channels.
+     */
+    private Map<PubControlClient, List<String>> route(List<String> channels) {
+        Map<PubControlClient, List<String>> routes =
+                new LinkedHashMap<PubControlClient, List<String>>();
+        Clients clients = this.clients;
+        if (clients.ring == null) {
+            for (PubControlClient client : clients.list)
+                routes.put(client, channels);
+            return routes;
+        }
+        for (String channel : channels) {
+            PubControlClient client = clients.ring.get(channel);
+            if (client == null)
+                continue;
+            List<String> clientChannels = routes.get(client);
+            if (clientChannels == null) {
+                clientChannels = new ArrayList<String>();
+                routes.put(client, clientChannels);
+            }
+            clientChannels.add(channel);
+        }
+        return routes;
+    }
+
+    /**
+     * An internal method that returns the configured clients followed by
+     * the removed clients that are still draining.
+     */
+    private List<PubControlClient> allClients() {
+        List<PubControlClient> clients =
+                new ArrayList<PubControlClient>(this.clients.list);
+        for (PubControlClient client : this.draining) {
+            if (!clients.contains(client))
+                clients.add(client);
+        }
+        return clients;
+    }
+
+    /**
+     * An internal method that installs a snapshot of the specified clients,
+     * keeping the sharding configuration. Must be called while holding the
+     * lock.
+     */
+    private void update(List<PubControlClient> list) {
+        this.clients = new Clients(list, this.clients.virtualNodes);
+    }
+
+    /**
+     * An internal method that completes the queued publishes of removed
+     * clients on a background thread. Clients that are still configured,
+     * for example because they were added again, are skipped.
+     */
+    private void drain(List<PubControlClient> removed) {
+        final List<PubControlClient> clients = new ArrayList<PubControlClient>();
+        for (PubControlClient client : removed) {
+            if (!this.clients.list.contains(client) && this.draining.add(client))
+                clients.add(client);
+        }
+        if (clients.isEmpty())
+            return;
+        new DaemonThreadFactory("pubcontrol-drain", true).newThread(new Runnable() {
+            public void run() {
+                for (PubControlClient client : clients) {
+                    try {
+                        client.finish();
+                    } finally {
+                        draining.remove(client);
+                    }
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * An internal method that sets the authentication of a client to the
+     * authentication of a configuration entry. The new authentication is
+     * set before the previous one is cleared so that concurrent publishes
+     * always use one of them. Basic authentication, which configurations
+     * cannot set and which would take priority, is cleared as well.
+     */
+    private static void applyAuth(PubControlClient client,
+            Map<String, Object> entry) {
+        Object iss = entry.get("iss");
+        Object key = entry.get("key");
+        if (iss != null && key != null) {
+            Map<String, Object> claims = new HashMap<String, Object>();
+            claims.put("iss", (String)iss);
+            client.setAuthJwt(claims, (byte[])key);
+            client.setAuthBearer(null);
+        } else if (key != null) {
+            client.setAuthBearer((String)key);
+            client.setAuthJwt(null, null);
+        } else {
+            client.setAuthJwt(null, null);
+            client.setAuthBearer(null);
+        }
+        client.setAuthBasic(null, null);
+    }
+
+    /**
+     * An internal method that returns whether two configuration entries
+     * specify the same authentication.
+     */
+    private static boolean sameAuth(Map<String, Object> entry,
+            Map<String, Object> other) {
+        return Objects.equals(entry.get("iss"), other.get("iss")) &&
+                Objects.deepEquals(entry.get("key"), other.get("key"));
+    }
+
+    /**
+     * An internal method that returns the transport shared by the clients
+     * created from configurations, creating the default one if needed. Must
+     * be called while holding the lock of this instance.
+     */
+    private Transport getTransport() {
+        if (this.transport == null)
+            this.transport = new HttpClientTransport();
+        return this.transport;
+    }
+
+    /**
+     * An internal method that returns the configured executor or lazily
+     * creates the internal thread pool. A lock of its own is used for the
+     * creation so that publishing never waits for a client change.
+     */
+    private Executor getExecutor() {
+        Executor executor = this.executor;
+        if (executor != null)
+            return executor;
+        synchronized (this.executorLock) {
+            if (this.executor == null)
+                this.executor = Executors.newCachedThreadPool(
+                        new DaemonThreadFactory("pubcontrol-fanout", true));
+            return this.executor;
+        }
+    }
+
+    /**
+     * An immutable snapshot of the configured clients along with the hash
+     * ring built from them when sharding is enabled. Publishes read the
+     * snapshot once so that they never see a partially applied change.
+     */
+    private static class Clients {
+        final List<PubControlClient> list;
+        final int virtualNodes;
+        final ConsistentHashRing ring;
+
+        Clients(List<PubControlClient> list, int virtualNodes) {
+            this.list = Collections.unmodifiableList(
+                    new ArrayList<PubControlClient>(list));
+            this.virtualNodes = virtualNodes;
+            this.ring = virtualNodes > 0 ?
+                    new ConsistentHashRing(this.list, virtualNodes) : null;
+        }
     }
 }
@@ -7,19 +7,21 @@
 
 package org.fanout.pubcontrol;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
 import java.util.concurrent.locks.*;
 import java.util.*;
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.net.*;
-import javax.net.ssl.HttpsURLConnection;
-import java.io.*;
-
-import java.security.Key;
-import javax.crypto.spec.SecretKeySpec;
-import io.jsonwebtoken.Jwts;
-import io.jsonwebtoken.SignatureAlgorithm;
-import io.jsonwebtoken.impl.crypto.MacProvider;
-import com.google.gson.Gson;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.zip.Deflater;
 
 /**
  * Allows consumers to publish to an endpoint of their choice. The consumer wraps a
@@ -28,53 +30,312 @@ import com.google.gson.Gson;
  * is called after the publishing is complete to notify the consumer of the
  * result.
  */
-public class PubControlClient implements Runnable {
+public class PubControlClient {
     private String uri;
     private final Lock lock = new ReentrantLock();
-    private final Lock pubWorkerLock = new ReentrantLock();
-    private final Condition pubWorkerCond = this.pubWorkerLock.newCondition();
-    private Thread pubWorker;
-    private Deque<Object[]> reqQueue = new LinkedList<Object[]>();
-    private String authBasicUser;
-    private String authBasicPass;
-    private Map<String, Object> authJwtClaim;
-    private byte[] authJwtKey;
-    private String authBearerKey;
+    private final AsyncPublisher asyncPublisher = new AsyncPublisher(
+            new AsyncPublisher.BatchHandler() {
+                public void publish(List<PubRequest> reqs) {
+                    pubBatch(reqs);
+                }
+            });
+    private final AuthHeaderCache authHeader = new AuthHeaderCache();
+    private volatile Transport transport;
+    private volatile Executor completionExecutor = ForkJoinPool.commonPool();
+    private volatile RetryPolicy retryPolicy = RetryPolicy.NONE;
+    private volatile CircuitBreaker circuitBreaker;
+    private volatile PublishSpool spool;
+    private volatile PublishMetrics metrics = PublishMetrics.NONE;
+    private volatile boolean coalescing;
+    private volatile RecentIds recentIds;
+    private volatile Compressor compressor;
 
     /**
      * Initialize this class with a URL representing the publishing endpoint.
      */
     public PubControlClient(String uri) {
+        this(uri, new HttpClientTransport());
+    }
+
+    /**
+     * Initialize this class with a URL representing the publishing endpoint
+     * and the transport used to send publish requests to it.
+     */
+    public PubControlClient(String uri, Transport transport) {
         this.uri = uri;
+        this.transport = transport;
+    }
+
+    /**
+     * Replace the transport used to send publish requests. Requests that
+     * are already in flight complete using the previous transport.
+     */
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * The URI of the publishing endpoint.
+     */
+    public String getUri() {
+        this.lock.lock();
+        try {
+            return this.uri;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Set the maximum number of asynchronous publish batches that are sent
+     * to the endpoint concurrently. The default is 1, which preserves the
+     * order of asynchronous publishes unless they are retried. Enable
+     * ordered lanes to keep publishes to the same channel in order with a
+     * higher concurrency or with retries.
+     */
+    public void setAsyncConcurrency(int maxInFlightBatches) {
+        this.asyncPublisher.setConcurrency(maxInFlightBatches);
+    }
+
+    /**
+     * Enable or disable ordered lanes for asynchronous publishes. While
+     * enabled, a publish is not sent while an earlier publish to any of its
+     * channels is in flight or waiting to be retried, so publishes to the
+     * same channel are sent strictly in order, and a publish that is retried
+     * is sent before any later publish to its channels. Publishes to
+     * different channels are still sent concurrently and batched together.
+     * Channels are told apart by their hash, so channels with colliding
+     * hashes are also kept in order with each other. Should be set before
+     * publishing. By default ordered lanes are disabled.
+     */
+    public void setAsyncOrdering(boolean enabled) {
+        this.asyncPublisher.setOrdered(enabled);
+    }
+
+    /**
+     * Set the executor that runs the asynchronous publish workers, for
+     * example Executors.newVirtualThreadPerTaskExecutor() on JDK 21 and
+     * above. The executor must be able to run as many tasks concurrently as
+     * the configured async concurrency. Pass null to use the internal
+     * thread pool.
+     */
+    public void setAsyncExecutor(Executor executor) {
+        this.asyncPublisher.setExecutor(executor);
+    }
+
+    /**
+     * Set the policy for retrying failed publishes. Synchronous publishes
+     * sleep between attempts while asynchronous publishes are put back in
+     * the queue after their backoff without blocking a worker. By default
+     * failed publishes are not retried.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        if (retryPolicy == null)
+            throw new IllegalArgumentException("retryPolicy must not be null");
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Set the circuit breaker that stops publishes from being sent to the
+     * endpoint while it keeps failing. While the breaker is open publishes
+     * fail immediately with a PublishFailedException and are not retried,
+     * so that neither the publishing threads nor the async queue are held up
+     * by an unavailable endpoint. Pass null to remove the circuit breaker,
+     * which is the default.
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        if (circuitBreaker != null)
+            circuitBreaker.setUri(this.getUri());
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * The state of the circuit breaker, which is always closed if no
+     * circuit breaker is set.
+     */
+    public CircuitState getCircuitState() {
+        CircuitBreaker circuitBreaker = this.circuitBreaker;
+        return circuitBreaker != null ? circuitBreaker.getState() :
+                CircuitState.CLOSED;
+    }
+
+    /**
+     * Set the executor on which the futures returned by publishAsync are
+     * completed. The default is the common fork/join pool.
+     */
+    public void setAsyncCompletionExecutor(Executor executor) {
+        if (executor == null)
+            throw new IllegalArgumentException("executor must not be null");
+        this.completionExecutor = executor;
+    }
+
+    /**
+     * Bound the async publish queue to the specified number of requests and
+     * apply the specified policy to requests that are made while it is full.
+     * By default the queue is unbounded.
+     */
+    public void setAsyncQueueCapacity(int capacity, OverflowPolicy policy) {
+        this.setAsyncQueueCapacity(capacity, policy, Duration.ZERO);
+    }
+
+    /**
+     * Bound the async publish queue to the specified number of requests and
+     * apply the specified policy to requests that are made while it is full.
+     * The block timeout applies to the BLOCK_WITH_TIMEOUT policy.
+     */
+    public void setAsyncQueueCapacity(int capacity, OverflowPolicy policy,
+            Duration blockTimeout) {
+        this.asyncPublisher.setCapacity(capacity, policy, blockTimeout.toNanos());
+    }
+
+    /**
+     * Limit async publish batches to the specified number of items and
+     * encoded bytes, and wait up to the linger time after a publish for
+     * more publishes to join its batch. Each channel of a publish counts
+     * as one item. By default batches contain up to 100 items and 1 MiB,
+     * and are sent without lingering.
+     */
+    public void setAsyncBatching(int maxItems, int maxBytes, Duration linger) {
+        this.asyncPublisher.setBatching(maxItems, maxBytes, linger.toNanos());
+    }
+
+    /**
+     * Compress the bodies of publish requests that contain at least the
+     * specified number of encoded bytes using the default compression level.
+     * Pass Compression.NONE to send all bodies uncompressed, which is the
+     * default.
+     */
+    public void setCompression(Compression compression, int minBytes) {
+        this.setCompression(compression, minBytes, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Compress the bodies of publish requests that contain at least the
+     * specified number of encoded bytes using the specified compression
+     * level between 1 and 9. The compression ratio and the CPU time spent
+     * compressing are reported to the configured metrics. The pooled
+     * deflaters of the previous setting are released.
+     */
+    public void setCompression(Compression compression, int minBytes, int level) {
+        if (compression == null)
+            throw new IllegalArgumentException("compression must not be null");
+        if (minBytes < 0)
+            throw new IllegalArgumentException("minBytes must not be negative");
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < 1 || level > 9))
+            throw new IllegalArgumentException("level must be between 1 and 9");
+        Compressor previous = this.compressor;
+        this.compressor = compression != Compression.NONE ?
+                new Compressor(compression, level, minBytes) : null;
+        if (previous != null)
+            previous.close();
+    }
+
+    /**
+     * Enable or disable coalescing of asynchronous publishes. While enabled,
+     * a publish replaces a publish to the same channels with the same
+     * coalesce key that is still waiting in the queue, taking its position.
+     * The replaced publish is completed successfully as coalesced without
+     * being sent. If the item of the later publish has the ID of the
+     * replaced item as its previous ID then it takes over the previous ID of
+     * the replaced item so that the ID chain has no gaps. Publishes that
+     * were already taken from the queue are never replaced. By default
+     * coalescing is disabled.
+     */
+    public void setAsyncCoalescing(boolean enabled) {
+        this.coalescing = enabled;
+    }
+
+    /**
+     * Drop publishes of items whose ID was already published to the same
+     * channels among the specified number of most recent publishes with an
+     * ID. Dropped publishes are completed successfully as coalesced without
+     * being sent. The ID of a publish that fails is forgotten so that it can
+     * be published again. Pass 0 to disable deduplication, which is the
+     * default.
+     */
+    public void setDeduplication(int maxRecentIds) {
+        if (maxRecentIds < 0)
+            throw new IllegalArgumentException("maxRecentIds must not be negative");
+        this.recentIds = maxRecentIds > 0 ? new RecentIds(maxRecentIds) : null;
+    }
+
+    /**
+     * Set the spool to which asynchronous publishes are written before they
+     * are queued so that they are not lost if the process dies before they
+     * are sent. Publishes recovered by the spool from a previous process are
+     * queued immediately using the current authentication settings, which
+     * should therefore be configured first. A publish that cannot be written
+     * to the spool fails. Pass null to stop spooling, which is the default.
+     */
+    public void setAsyncSpool(PublishSpool spool) {
+        this.spool = spool;
+        if (spool == null)
+            return;
+        String uri = this.getUri();
+        long authGeneration = this.authHeader.getGeneration();
+        String auth = this.genAuthHeader();
+        for (PublishSpool.Record record : spool.takeRecovered()) {
+            PubRequest req = new PubRequest(uri, auth, authGeneration,
+                    Collections.singletonList(record.items), record.itemCount,
+                    null, null, this.completionExecutor);
+            req.spoolRecord = record;
+            this.asyncPublisher.enqueue(req);
+        }
+    }
+
+    /**
+     * Set the instrumentation that is notified of queued, dropped, sent and
+     * retried publishes, for example a PublishStats instance. Pass null to
+     * remove the instrumentation, which is the default.
+     */
+    public void setMetrics(PublishMetrics metrics) {
+        if (metrics == null)
+            metrics = PublishMetrics.NONE;
+        metrics.attach(this.getUri(), new IntSupplier() {
+            public int getAsInt() {
+                return asyncPublisher.size();
+            }
+        });
+        this.metrics = metrics;
+        this.asyncPublisher.setMetrics(metrics);
+    }
+
+    /**
+     * The number of async publish requests currently waiting to be sent.
+     */
+    public int getAsyncQueueSize() {
+        return this.asyncPublisher.size();
     }
 
     /**
      * Pass a username and password to use basic authentication.
      */
     public void setAuthBasic(String userName, String password) {
-        this.lock.lock();
-        this.authBasicUser = userName;
-        this.authBasicPass = password;
-        this.lock.unlock();
+        this.authHeader.setBasic(userName, password);
     }
 
     /**
      * Pass a claim and key to use JWT authentication with the configured endpoint.
+     * The signed token is cached and reused until the refresh margin before
+     * its expiry is reached. Calling this method invalidates the cached token.
      */
     public void setAuthJwt(Map<String, Object> claims, byte[] key) {
-        this.lock.lock();
-        this.authJwtClaim = claims;
-        this.authJwtKey = key;
-        this.lock.unlock();
+        this.authHeader.setJwt(claims, key);
+    }
+
+    /**
+     * Set how long before its expiry a cached JWT token is re-signed.
+     * The default is five minutes.
+     */
+    public void setAuthJwtRefreshMargin(Duration margin) {
+        this.authHeader.setRefreshMargin(margin);
     }
 
     /**
      * Pass a key to use bearer authentication with the configured endpoint.
      */
     public void setAuthBearer(String key) {
-        this.lock.lock();
-        this.authBearerKey = key;
-        this.lock.unlock();
+        this.authHeader.setBearer(key);
     }
 
     /**
@@ -82,19 +343,60 @@ public class PubControlClient implements Runnable {
      */
     public void publish(List<String> channels, Item item)
             throws PublishFailedException {
-        List<Map<String, Object>> exports = new ArrayList<Map<String, Object>>();
-        for (String channel : channels) {
-            Map<String, Object> export = item.export();
-            export.put("channel", channel);
-            exports.add(export);
-        }
+        this.publish(channels, ItemEncoder.encode(item));
+    }
+
+    /**
+     * Publish the already encoded item synchronously to the specified
+     * channels. Used by PubControl to share one encoding across clients.
+     */
+    void publish(List<String> channels, EncodedItem item)
+            throws PublishFailedException {
+        RecentIds recentIds = this.recentIds;
+        String recentId = recentId(channels, item);
+        if (recentIds != null && recentId != null && !recentIds.add(recentId))
+            return;
+        List<ByteBuffer> items = ItemEncoder.encodeChannels(item, channels);
         String uri = null;
-        String auth = null;
         this.lock.lock();
         uri = this.uri;
-        auth = this.genAuthHeader();
         this.lock.unlock();
-        this.pubCall(uri, auth, exports);
+        try {
+            this.pubCallWithRetry(uri, Collections.singletonList(items),
+                    channels.size());
+        } catch (PublishFailedException exception) {
+            if (recentIds != null && recentId != null)
+                recentIds.remove(recentId);
+            throw exception;
+        }
+    }
+
+    /**
+     * Publish the already encoded item synchronously to the specified
+     * channels and return the result instead of throwing on failure.
+     * Used by PubControl to publish to several clients in parallel.
+     */
+    EndpointResult publishForResult(List<String> channels, EncodedItem item) {
+        long start = System.nanoTime();
+        RecentIds recentIds = this.recentIds;
+        String recentId = recentId(channels, item);
+        if (recentIds != null && recentId != null && !recentIds.add(recentId))
+            return new EndpointResult(this.getUri(), true, 0,
+                    Duration.ofNanos(System.nanoTime() - start), null, true);
+        try {
+            List<ByteBuffer> items = ItemEncoder.encodeChannels(item, channels);
+            String uri = this.getUri();
+            int statusCode = this.pubCallWithRetry(uri,
+                    Collections.singletonList(items), channels.size());
+            return new EndpointResult(uri, true, statusCode,
+                    Duration.ofNanos(System.nanoTime() - start), null);
+        } catch (PublishFailedException exception) {
+            if (recentIds != null && recentId != null)
+                recentIds.remove(recentId);
+            return new EndpointResult(this.getUri(), false,
+                    exception.getStatusCode(),
+                    Duration.ofNanos(System.nanoTime() - start), exception);
+        }
     }
 
     /**
@@ -102,240 +404,446 @@ public class PubControlClient implements Runnable {
      * Optionally provide a callback to be executed after publishing.
      */
     public void publishAsync(List<String> channels, Item item, PublishCallback callback) {
-        List<Map<String, Object>> exports = new ArrayList<Map<String, Object>>();
-        for (String channel : channels) {
-            Map<String, Object> export = item.export();
-            export.put("channel", channel);
-            exports.add(export);
-        }
+        this.publishAsync(channels, ItemEncoder.encode(item), null, callback, null);
+    }
+
+    /**
+     * Publish the item asynchronously to the specified channels with the
+     * specified coalesce key, which distinguishes publishes to the same
+     * channels that must not replace each other while coalescing is enabled.
+     * Optionally provide a callback to be executed after publishing.
+     */
+    public void publishAsync(List<String> channels, Item item,
+            String coalesceKey, PublishCallback callback) {
+        this.publishAsync(channels, ItemEncoder.encode(item), coalesceKey,
+                callback, null);
+    }
+
+    /**
+     * Publish the item asynchronously to the specified channels and return a
+     * future that is completed with the result. The future is completed on
+     * the async completion executor rather than on a publish worker, and can
+     * be given a timeout using its orTimeout method.
+     */
+    public CompletableFuture<PublishResult> publishAsync(List<String> channels,
+            Item item) {
+        CompletableFuture<EndpointResult> future =
+                new CompletableFuture<EndpointResult>();
+        this.publishAsync(channels, ItemEncoder.encode(item), null, null, future);
+        return future.thenApply(new Function<EndpointResult, PublishResult>() {
+            public PublishResult apply(EndpointResult result) {
+                return new PublishResult(Collections.singletonList(result));
+            }
+        });
+    }
+
+    /**
+     * Create a processor that publishes a stream of publications
+     * asynchronously with backpressure. The window is the queue capacity if
+     * the queue is bounded and otherwise enough publications to fill two
+     * batches for every concurrent worker.
+     */
+    public PublishProcessor newPublishProcessor() {
+        return this.newPublishProcessor(this.getPublishWindow());
+    }
+
+    /**
+     * Create a processor that publishes a stream of publications
+     * asynchronously with backpressure, with at most the specified number of
+     * publications outstanding at any time.
+     */
+    public PublishProcessor newPublishProcessor(int window) {
+        return new PublishProcessor(
+                new Function<Publication, CompletableFuture<PublishResult>>() {
+                    public CompletableFuture<PublishResult> apply(
+                            Publication publication) {
+                        return publishAsync(publication.getChannels(),
+                                publication.getItem());
+                    }
+                }, window);
+    }
+
+    /**
+     * An internal method that returns the window used by default for
+     * processors publishing to this client.
+     */
+    int getPublishWindow() {
+        return this.asyncPublisher.window();
+    }
+
+    /**
+     * Publish the already encoded item asynchronously to the specified
+     * channels, completing the callback and the future if provided. Used by
+     * PubControl to share one encoding across clients.
+     */
+    void publishAsync(List<String> channels, EncodedItem item,
+            PublishCallback callback, CompletableFuture<EndpointResult> future) {
+        this.publishAsync(channels, item, null, callback, future);
+    }
+
+    /**
+     * Publish the already encoded item asynchronously to the specified
+     * channels with the specified coalesce key, completing the callback and
+     * the future if provided.
+     */
+    void publishAsync(List<String> channels, EncodedItem item,
+            String coalesceKey, PublishCallback callback,
+            CompletableFuture<EndpointResult> future) {
+        List<ByteBuffer> items = ItemEncoder.encodeChannels(item, channels);
         String uri = null;
         String auth = null;
         this.lock.lock();
         uri = this.uri;
-        auth = this.genAuthHeader();
-        this.ensureThread();
         this.lock.unlock();
-        Object[] req = {"pub", uri, auth, exports, callback};
-        this.queueReq(req);
+        long authGeneration = this.authHeader.getGeneration();
+        auth = this.genAuthHeader();
+        PubRequest req = new PubRequest(uri, auth, authGeneration, items,
+                channels.size(), callback, future, this.completionExecutor);
+        req.setLanes(channels);
+        req.item = item.getItem();
+        req.itemPrevId = req.item.getPrevId();
+        req.channels = channels;
+        RecentIds recentIds = this.recentIds;
+        String recentId = recentId(channels, item);
+        if (recentIds != null && recentId != null) {
+            if (!recentIds.add(recentId)) {
+                req.coalesce("duplicate");
+                return;
+            }
+            req.recentIds = recentIds;
+            req.recentId = recentId;
+        }
+        if (this.coalescing) {
+            req.coalesceKey = String.join("\0", channels) +
+                    (coalesceKey != null ? "\0\0" + coalesceKey : "");
+        }
+        PublishSpool spool = this.spool;
+        if (spool != null) {
+            req.spool = spool;
+            try {
+                req.spoolRecord = spool.append(items, req.size, req.itemCount);
+            } catch (IOException exception) {
+                req.fail("failed to publish: " + exception.getMessage());
+                return;
+            }
+        }
+        this.asyncPublisher.enqueue(req);
     }
 
     /**
      * Ensure that all asynchronous publishing is complete prior to returning.
+     * The internal worker threads are daemon threads, so this method should
+     * be called before the application exits. The native memory of pooled
+     * compression deflaters is released.
      */
     public void finish() {
-        this.lock.lock();
-        if (this.pubWorker != null) {
-            Object[] req = {"stop"};
-            this.queueReq(req);
-            try {
-                this.pubWorker.join();
-            } catch (InterruptedException exception) { }
-            this.pubWorker = null;
-        }
-        this.lock.unlock();
+        this.asyncPublisher.finish();
+        this.clearCompressor();
+    }
+
+    /**
+     * Wait at most the specified timeout for all asynchronous publishing to
+     * complete, then abandon the publishes that are still queued or waiting
+     * to be retried and return the outcome. Publishes that are being sent
+     * when the timeout elapses are not interrupted. Waiting also stops if
+     * the thread is interrupted, whose interrupt status is kept. Publishes
+     * made while this method is waiting are included, and the client can
+     * still be used afterwards.
+     */
+    public ShutdownResult finish(Duration timeout) {
+        long succeeded = this.asyncPublisher.getSucceededCount();
+        long failed = this.asyncPublisher.getFailedCount();
+        return this.shutdownResult(succeeded, failed,
+                this.asyncPublisher.finish(timeout.toNanos()));
     }
 
     /**
-     * An internal method that ensures that asynchronous publish calls are properly processed.
-     * This method initializes the required class fields,
-     * starts the pubworker worker thread, and is meant to execute only when
-     * the consumer makes an asynchronous publish call.
+     * Stop the asynchronous workers from lingering until the matching
+     * endFinish call. Used by PubControl to disable lingering on all of its
+     * clients before it waits on any of them.
      */
-    private void ensureThread() {
-        if (this.pubWorker == null) {
-            this.pubWorker = new Thread(this);
-            this.pubWorker.start();
+    void beginFinish() {
+        this.asyncPublisher.beginFinish();
+    }
+
+    /**
+     * Undo a preceding beginFinish call.
+     */
+    void endFinish() {
+        this.asyncPublisher.endFinish();
+    }
+
+    /**
+     * Abandon the asynchronous publishes that are queued or waiting to be
+     * retried without waiting for them and return the outcome. Publishes
+     * that are being sent are not interrupted. The client can still be
+     * used afterwards.
+     */
+    public ShutdownResult shutdownNow() {
+        long succeeded = this.asyncPublisher.getSucceededCount();
+        long failed = this.asyncPublisher.getFailedCount();
+        return this.shutdownResult(succeeded, failed,
+                this.asyncPublisher.abandon());
+    }
+
+    /**
+     * An internal method that releases the pooled deflaters of the
+     * compressor, if any.
+     */
+    private void clearCompressor() {
+        Compressor compressor = this.compressor;
+        if (compressor != null)
+            compressor.clear();
+    }
+
+    /**
+     * An internal method that fails the abandoned publishes and returns the
+     * outcome of a shutdown given the completion counts when it started.
+     * The pooled deflaters of the compressor are released.
+     */
+    private ShutdownResult shutdownResult(long succeeded, long failed,
+            List<PubRequest> abandoned) {
+        this.clearCompressor();
+        if (abandoned.size() > 0)
+            this.metrics.requestsDropped(abandoned.size());
+        List<Publication> publications = new ArrayList<Publication>();
+        for (PubRequest req : abandoned) {
+            if (req.item != null)
+                publications.add(new Publication(req.channels, req.item,
+                        req.uri));
+            req.abandon();
         }
+        return new ShutdownResult(
+                this.asyncPublisher.getSucceededCount() - succeeded,
+                this.asyncPublisher.getFailedCount() - failed,
+                abandoned.size(), this.asyncPublisher.getInFlightCount(),
+                publications);
     }
 
     /**
-     * An internal method for adding an asynchronous publish request to the publishing queue.
-     * This method will also activate the pubworker worker
-     * thread to make sure that it process any and all requests added to
-     * the queue.
+     * An internal method that returns the key under which a publish of the
+     * item to the channels is remembered for deduplication, or null if the
+     * item has no ID.
      */
-    private void queueReq(Object[] req) {
-        this.pubWorkerLock.lock();
-        this.reqQueue.addLast(req);
-        this.pubWorkerCond.signal();
-        this.pubWorkerLock.unlock();
+    private static String recentId(List<String> channels, EncodedItem item) {
+        String id = item.getItem().getId();
+        if (id == null || id.isEmpty())
+            return null;
+        return id + "\0" + String.join("\0", channels);
     }
 
     /**
      * An internal method used to generate an authorization header. The
      * authorization header is generated based on whether basic or JWT
      * authorization information was provided via the publicly accessible
-     * 'set_*_auth' methods defined above.
+     * 'set_*_auth' methods defined above. The header is cached and
+     * JWT headers are only re-signed shortly before they expire.
      */
     private String genAuthHeader() {
-        if (this.authBasicUser != null && this.authBasicPass != null) {
-            try {
-                return Base64.getEncoder().encodeToString(
-                        (this.authBasicUser + ":" +
-                        this.authBasicPass).getBytes("utf-8"));
-            } catch (UnsupportedEncodingException exception) { }
-        }
-        else if (this.authJwtClaim != null) {
-            Key decodedKey = new SecretKeySpec(this.authJwtKey,
-                    SignatureAlgorithm.HS256.getJcaName());
-            Map<String, Object> claims = new HashMap<String, Object>();
-            claims.putAll(this.authJwtClaim);
-            if (this.authJwtClaim.get("exp") == null)
-                claims.put("exp", new Date((new Date()).getTime() + (3600 * 1000)));
-            String token = Jwts.builder().setClaims(claims).
-                    signWith(SignatureAlgorithm.HS256, decodedKey).compact();
-            return "Bearer " + token;
-        } else if (this.authBearerKey != null) {
-            return "Bearer " + this.authBearerKey;
-        }
-
-        return null;
+        return this.authHeader.get();
     }
 
     /**
-     * An internal method for publishing a batch of requests. The requests are
-     * parsed for the URI, authorization header, and each request is published
-     * to the endpoint. After all publishing is complete, each callback
-     * corresponding to each request is called (if a callback was originally
-     * provided for that request) and passed a result indicating whether that
-     * request was successfully published.
+     * An internal method for publishing a batch of requests. All requests of
+     * a batch share the URI and authorization header that were captured when
+     * they were queued, and are published to the endpoint together. Unless
+     * the authentication settings changed since, the header is re-read for
+     * every attempt so that a JWT that expired while the requests waited in
+     * the queue or for a retry is replaced by a freshly signed one.
+     * Requests that failed and are to be retried according to the retry
+     * policy are handed back to the queue after their backoff. After all
+     * publishing is complete, each request is completed, which calls its
+     * callback and completes its future (if either was originally provided
+     * for that request) with a result indicating whether that request was
+     * successfully published.
      */
-    @SuppressWarnings({"unchecked"})
-    private void pubBatch(List<Object[]> reqs) {
+    private void pubBatch(List<PubRequest> reqs) {
         if (reqs.size() == 0)
             return;
-        String authHeader = (String)reqs.get(0)[1];
-        List<Map<String, Object>> items = new ArrayList<Map<String, Object>>();
-        List<PublishCallback> callbacks = new ArrayList<PublishCallback>();
-        for (Object[] req : reqs) {
-            items.addAll((List<Map<String, Object>>)req[2]);
-            callbacks.add((PublishCallback)req[3]);
+        String uri = reqs.get(0).uri;
+        String authHeader = reqs.get(0).auth;
+        if (this.authHeader.getGeneration() == reqs.get(0).authGeneration)
+            authHeader = this.genAuthHeader();
+        List<List<ByteBuffer>> items = new ArrayList<List<ByteBuffer>>();
+        PublishMetrics metrics = this.metrics;
+        long now = System.nanoTime();
+        int itemCount = 0;
+        for (PubRequest req : reqs) {
+            items.add(req.items);
+            itemCount += req.itemCount;
+            req.attempts++;
+            metrics.requestDequeued(now - req.enqueuedNanos);
         }
-        boolean result = true;
-        String message = null;
+        int statusCode = 0;
+        PublishFailedException failure = null;
         try {
-            this.pubCall(uri, authHeader, items);
-        } catch (Exception exception) {
-            result = false;
-            message = exception.getMessage();
+            statusCode = this.pubCall(uri, authHeader, items, itemCount);
+        } catch (PublishFailedException exception) {
+            statusCode = exception.getStatusCode();
+            failure = exception;
+        } catch (RuntimeException exception) {
+            failure = new PublishFailedException("failed to publish: " +
+                    exception.getMessage(), exception);
+        }
+        RetryPolicy retryPolicy = this.retryPolicy;
+        List<PubRequest> retries = new ArrayList<PubRequest>();
+        int attempts = 0;
+        for (PubRequest req : reqs) {
+            if (failure != null && retryPolicy.shouldRetry(failure, req.attempts)) {
+                retries.add(req);
+                attempts = Math.max(attempts, req.attempts);
+            } else {
+                req.complete(statusCode, failure);
+            }
+        }
+        if (retries.size() > 0) {
+            metrics.requestsRetried(retries.size());
+            this.asyncPublisher.retry(retries,
+                    retryPolicy.getBackoffNanos(attempts, failure));
+        }
+    }
+
+    /**
+     * An internal method for synchronous publishing that retries failed
+     * publishes according to the retry policy by sleeping on the calling
+     * thread. The authorization header is regenerated for every attempt.
+     */
+    private int pubCallWithRetry(String uri, List<List<ByteBuffer>> items,
+            int itemCount) throws PublishFailedException {
+        RetryPolicy retryPolicy = this.retryPolicy;
+        int attempts = 0;
+        while (true) {
+            attempts++;
+            try {
+                return this.pubCall(uri, this.genAuthHeader(), items, itemCount);
+            } catch (PublishFailedException exception) {
+                if (!retryPolicy.shouldRetry(exception, attempts))
+                    throw exception;
+                this.metrics.requestsRetried(1);
+                try {
+                    TimeUnit.NANOSECONDS.sleep(
+                            retryPolicy.getBackoffNanos(attempts, exception));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw exception;
+                }
+            }
         }
-        for (PublishCallback callback : callbacks)
-            if (callback != null)
-                callback.completed(result, message);
     }
 
     /**
      * An internal method for preparing the HTTP POST request for publishing.
      * This method accepts the URI endpoint, authorization
-     * header, and a list of items to publish.
+     * header, a list of encoded items to publish and the number of items,
+     * and returns the HTTP status code. The request is only made if the circuit breaker, if
+     * any, allows it, and its outcome is recorded by the circuit breaker. If
+     * the body cannot be built the permission is given back instead.
      */
-    private void pubCall(String uri, String authHeader,
-            List<Map<String, Object>> items) throws PublishFailedException {
-        URL url = null;
+    private int pubCall(String uri, String authHeader,
+            List<List<ByteBuffer>> items, int itemCount)
+            throws PublishFailedException {
+        URI url = null;
         try {
-            url = new URL(uri + "/publish/");
-        } catch (MalformedURLException exception) {
+            url = new URI(uri + "/publish/");
+        } catch (URISyntaxException exception) {
             throw new PublishFailedException("failed to publish: bad uri");
         }
-        Map<String, Object> content = new HashMap<String, Object>();
-        content.put("items", items);
-        String jsonContent = new Gson().toJson(content);
-        makeHttpRequest(url, authHeader, jsonContent);
+        if (!"http".equalsIgnoreCase(url.getScheme()) &&
+                !"https".equalsIgnoreCase(url.getScheme()))
+            throw new PublishFailedException("failed to publish: bad uri");
+        CircuitBreaker circuitBreaker = this.circuitBreaker;
+        CircuitBreaker.Permit permit = null;
+        if (circuitBreaker != null) {
+            permit = circuitBreaker.allowRequest();
+            if (permit == null)
+                throw new PublishFailedException("failed to publish: circuit open");
+        }
+        List<ByteBuffer> content = null;
+        int byteCount = 0;
+        String contentEncoding = null;
+        boolean prepared = false;
+        try {
+            content = ItemEncoder.buildContent(items);
+            for (ByteBuffer buffer : content)
+                byteCount += buffer.remaining();
+            Compressor compressor = this.compressor;
+            if (compressor != null && compressor.accepts(byteCount)) {
+                content = this.compress(compressor, content, byteCount);
+                contentEncoding = compressor.getContentEncoding();
+            }
+            prepared = true;
+        } finally {
+            if (!prepared && circuitBreaker != null)
+                circuitBreaker.release(permit);
+        }
+        int statusCode = 0;
+        long start = System.nanoTime();
+        try {
+            statusCode = makeHttpRequest(url, authHeader, content,
+                    contentEncoding);
+            return statusCode;
+        } catch (PublishFailedException exception) {
+            statusCode = exception.getStatusCode();
+            throw exception;
+        } finally {
+            if (circuitBreaker != null)
+                circuitBreaker.record(permit, statusCode);
+            this.metrics.requestSent(itemCount, byteCount,
+                    System.nanoTime() - start, statusCode);
+        }
     }
 
     /**
-     * Make an HTTP request to publish the specified items.
+     * An internal method that compresses the request body and reports the
+     * compression ratio and the CPU time spent to the metrics.
      */
-    private void makeHttpRequest(URL url, String authHeader,
-            String jsonContent) throws PublishFailedException {
-        URLConnection connection = null;
-        int responseCode = 0;
-        StringBuilder response = new StringBuilder();
+    private List<ByteBuffer> compress(Compressor compressor,
+            List<ByteBuffer> content, int byteCount) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        boolean cpuTime = threads.isCurrentThreadCpuTimeSupported();
+        long start = cpuTime ? threads.getCurrentThreadCpuTime() :
+                System.nanoTime();
+        List<ByteBuffer> compressed = compressor.compress(content, byteCount);
+        long end = cpuTime ? threads.getCurrentThreadCpuTime() :
+                System.nanoTime();
+        int compressedByteCount = 0;
+        for (ByteBuffer buffer : compressed)
+            compressedByteCount += buffer.remaining();
+        this.metrics.requestCompressed(byteCount, compressedByteCount,
+                end - start);
+        return compressed;
+    }
+
+    /**
+     * Make an HTTP request to publish the specified items using the
+     * configured transport and return the HTTP status code. The content
+     * encoding is null unless the items were compressed.
+     */
+    private int makeHttpRequest(URI url, String authHeader,
+            List<ByteBuffer> content, String contentEncoding)
+            throws PublishFailedException {
+        Map<String, String> headers = new HashMap<String, String>();
+        if (authHeader != null)
+            headers.put("Authorization", authHeader);
+        headers.put("Content-Type", "application/json");
+        if (contentEncoding != null)
+            headers.put("Content-Encoding", contentEncoding);
+        TransportResponse response = null;
         try {
-            connection = url.openConnection();
-            if (connection instanceof HttpURLConnection)
-                ((HttpURLConnection)connection).setRequestMethod("POST");
-            else
-                ((HttpsURLConnection)connection).setRequestMethod("POST");
-            if (authHeader != null)
-                connection.setRequestProperty("Authorization", authHeader);
-            connection.setRequestProperty("Content-Type",
-                    "application/json");
-            connection.setRequestProperty("Content-Length",
-                    Integer.toString(jsonContent.getBytes().length));
-            connection.setUseCaches(false);
-            connection.setDoOutput(true);
-            DataOutputStream dataOutputStream = new DataOutputStream (
-            connection.getOutputStream());
-            dataOutputStream.writeBytes(jsonContent);
-            dataOutputStream.close();
-            InputStream inputStream = connection.getInputStream();
-            BufferedReader bufferedReader = new BufferedReader(
-                    new InputStreamReader(inputStream));
-            String line;
-            while((line = bufferedReader.readLine()) != null) {
-                response.append(line);
-                response.append('\r');
-            }
-            bufferedReader.close();
-            if (connection instanceof HttpURLConnection)
-                responseCode = ((HttpURLConnection)connection).getResponseCode();
-            else
-                responseCode = ((HttpsURLConnection)connection).getResponseCode();
+            response = this.transport.send(url, headers, content);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new PublishFailedException("failed to publish: interrupted");
         } catch (Exception exception) {
             throw new PublishFailedException("failed to publish: " +
-                    exception.getMessage());
-        } finally {
-            if (connection != null)
-            {
-                if (connection instanceof HttpURLConnection)
-                    ((HttpURLConnection)connection).disconnect();
-                else
-                    ((HttpsURLConnection)connection).disconnect();
-            }
+                    exception.getMessage(), exception);
         }
+        int responseCode = response.getStatusCode();
         if (responseCode < 200 || responseCode >= 300)
             throw new PublishFailedException("failed to publish: " +
                     Integer.toString(responseCode) + " " +
-                    response.toString());
-    }
-
-    /**
-     * An internal class that runs as a separate thread and processes async publishes.
-     * The method runs continously and
-     * publishes requests in batches containing a maximum of 10 requests. The
-     * method completes and the thread is terminated only when a 'stop' command
-     * is provided in the request queue.
-     */
-    public void run() {
-        boolean quit = false;
-        while (!quit) {
-            this.pubWorkerLock.lock();
-            if (this.reqQueue.size() == 0) {
-                try {
-                    this.pubWorkerCond.await();
-                    if (this.reqQueue.size() == 0) {
-                        this.pubWorkerLock.unlock();
-                        continue;
-                    }
-                } catch (InterruptedException exception) {
-                    this.pubWorkerLock.unlock();
-                    continue;
-                }
-            }
-            List<Object[]> reqs = new ArrayList<Object[]>();
-            while (this.reqQueue.size() > 0 && reqs.size() < 10) {
-                Object[] m = this.reqQueue.removeFirst();
-                if (m[0].equals("stop")) {
-                    quit = true;
-                    break;
-                }
-                Object[] req = {m[1], m[2], m[3], m[4]};
-                reqs.add(req);
-            }
-            this.pubWorkerLock.unlock();
-            if (reqs.size() > 0)
-                this.pubBatch(reqs);
-        }
+                    response.getBody(), responseCode,
+                    RetryPolicy.parseRetryAfter(response.getHeader("Retry-After")));
+        return responseCode;
     }
 }
@@ -0,0 +1,194 @@
+//        PubRequest.java
+//        ~~~~~~~~~
+//        This module implements the PubRequest class.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Used internally to represent an asynchronous publish request that is
+ * waiting in the queue of a PubControlClient instance. Contains the URI,
+ * authorization header and authentication settings generation captured at
+ * the time of the publish call, the
+ * buffers containing the items encoded as comma-separated JSON objects and
+ * the optional callback and future that are completed with the result.
+ * Requests also hold their item and channels so that a request superseding
+ * them can be re-encoded and so that they can be handed back when they are
+ * abandoned, and the request in the queue refers to the latest request
+ * that superseded it. The lanes of a
+ * request are the hashes of its channels and are used to keep requests to
+ * the same channel in order.
+ */
+class PubRequest {
+    private static final int[] NO_LANES = new int[0];
+
+    final String uri;
+    final String auth;
+    final long authGeneration;
+    List<ByteBuffer> items;
+    final int itemCount;
+    int size;
+    final PublishCallback callback;
+    final CompletableFuture<EndpointResult> future;
+    final Executor completionExecutor;
+    final long enqueuedNanos;
+    int attempts;
+    PublishSpool spool;
+    PublishSpool.Record spoolRecord;
+    Item item;
+    String itemPrevId;
+    List<String> channels;
+    String coalesceKey;
+    PubRequest replacement;
+    RecentIds recentIds;
+    String recentId;
+    int[] lanes = NO_LANES;
+    AsyncPublisher publisher;
+
+    PubRequest(String uri, String auth, long authGeneration,
+            List<ByteBuffer> items, int itemCount, PublishCallback callback,
+            CompletableFuture<EndpointResult> future, Executor completionExecutor) {
+        this.uri = uri;
+        this.auth = auth;
+        this.authGeneration = authGeneration;
+        this.items = items;
+        this.itemCount = itemCount;
+        this.size = size(items);
+        this.callback = callback;
+        this.future = future;
+        this.completionExecutor = completionExecutor;
+        this.enqueuedNanos = System.nanoTime();
+    }
+
+    /**
+     * Complete the request with the HTTP status code, or 0 if no response
+     * was received, and the failure if the publish failed. The callback is
+     * called on the current thread while the future is completed on the
+     * completion executor so that its dependent stages do not run on the
+     * publish worker. The spooled copy of the request, if any, is marked
+     * as completed.
+     */
+    void complete(int statusCode, PublishFailedException failure) {
+        if (failure != null && this.recentIds != null)
+            this.recentIds.remove(this.recentId);
+        this.complete(new EndpointResult(this.uri, failure == null, statusCode,
+                Duration.ofNanos(System.nanoTime() - this.enqueuedNanos),
+                failure), failure != null ? failure.getMessage() : null, true);
+    }
+
+    /**
+     * Complete the request as coalesced without it having been sent. The
+     * callback is called with a successful result and the specified reason.
+     */
+    void coalesce(String reason) {
+        this.complete(new EndpointResult(this.uri, true, 0,
+                Duration.ofNanos(System.nanoTime() - this.enqueuedNanos),
+                null, true), reason, true);
+    }
+
+    /**
+     * Fail the request because it was removed from the queue on shutdown
+     * without being sent. The spooled copy of the request, if any, is left
+     * pending so that it is published again when the spool is reopened.
+     */
+    void abandon() {
+        PublishFailedException failure = new PublishFailedException(
+                "failed to publish: abandoned on shutdown");
+        if (this.recentIds != null)
+            this.recentIds.remove(this.recentId);
+        this.complete(new EndpointResult(this.uri, false, 0,
+                Duration.ofNanos(System.nanoTime() - this.enqueuedNanos),
+                failure), failure.getMessage(), false);
+    }
+
+    /**
+     * Re-encode the item of the request with the specified previous ID.
+     * Used when the request supersedes a request that was never sent, so
+     * that the ID chain seen by subscribers has no gaps. If the request was
+     * spooled then the re-encoded request is spooled in place of the
+     * previous copy. Must be called before the request is visible to
+     * workers.
+     */
+    void rechain(String prevId) throws IOException {
+        Item item = this.item.withPrevId(prevId);
+        List<ByteBuffer> items = ItemEncoder.encodeChannels(
+                ItemEncoder.encode(item), this.channels);
+        int size = size(items);
+        if (this.spool != null) {
+            PublishSpool.Record previous = this.spoolRecord;
+            this.spoolRecord = this.spool.append(items, size, this.itemCount);
+            if (previous != null)
+                previous.complete();
+        }
+        this.item = item;
+        this.items = items;
+        this.size = size;
+    }
+
+    /**
+     * Fail the request without it having been sent.
+     */
+    void fail(String message) {
+        this.complete(0, new PublishFailedException(message));
+    }
+
+    /**
+     * An internal method that completes the future and the callback with the
+     * specified result and callback message and, unless the request was
+     * abandoned, the spooled copy and the completion counts.
+     */
+    private void complete(final EndpointResult result, String message,
+            boolean finished) {
+        if (finished && this.spoolRecord != null)
+            this.spoolRecord.complete();
+        if (finished && this.publisher != null)
+            this.publisher.completed(result.isSuccess());
+        if (this.future != null) {
+            try {
+                this.future.completeAsync(new Supplier<EndpointResult>() {
+                    public EndpointResult get() {
+                        return result;
+                    }
+                }, this.completionExecutor);
+            } catch (RejectedExecutionException exception) {
+                this.future.complete(result);
+            }
+        }
+        if (this.callback != null) {
+            try {
+                this.callback.completed(result.isSuccess(), message);
+            } catch (RuntimeException exception) {
+                // A failing callback must not keep the other requests of
+                // the batch from completing.
+            }
+        }
+    }
+
+    /**
+     * Set the lanes of the request to the hashes of the channels.
+     */
+    void setLanes(List<String> channels) {
+        this.lanes = new int[channels.size()];
+        for (int n = 0; n < channels.size(); n++)
+            this.lanes[n] = channels.get(n).hashCode();
+    }
+
+    /**
+     * An internal method that returns the number of bytes in the buffers.
+     */
+    private static int size(List<ByteBuffer> items) {
+        int size = 0;
+        for (ByteBuffer buffer : items)
+            size += buffer.remaining();
+        return size;
+    }
+}
@@ -0,0 +1,63 @@
+//        Publication.java
+//        ~~~~~~~~~
+//        This module implements the Publication class.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+import java.util.*;
+
+/**
+ * An item along with the channels it is to be published to. Publications
+ * are the elements consumed by a PublishProcessor.
+ */
+public class Publication {
+    private final List<String> channels;
+    private final Item item;
+    private final String uri;
+
+    /**
+     * Initialize with the channels and the item.
+     */
+    public Publication(List<String> channels, Item item) {
+        this(channels, item, null);
+    }
+
+    /**
+     * Initialize with the channels, the item and the URI of the endpoint
+     * that the item was to be published to.
+     */
+    Publication(List<String> channels, Item item, String uri) {
+        this.channels = channels;
+        this.item = item;
+        this.uri = uri;
+    }
+
+    /**
+     * The channels that the item is published to.
+     */
+    public List<String> getChannels() {
+        return this.channels;
+    }
+
+    /**
+     * The item that is published.
+     */
+    public Item getItem() {
+        return this.item;
+    }
+
+    /**
+     * The URI of the endpoint that the item was to be published to, or null
+     * if the publication is not bound to an endpoint. Abandoned publications
+     * handed back by a shutdown carry the URI of the client that abandoned
+     * them, so that they can be published again through that client alone
+     * rather than to every endpoint, some of which may already have
+     * accepted the item.
+     */
+    public String getUri() {
+        return this.uri;
+    }
+}
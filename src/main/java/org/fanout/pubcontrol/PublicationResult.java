@@ -0,0 +1,46 @@
+//        PublicationResult.java
+//        ~~~~~~~~~
+//        This module implements the PublicationResult class.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+/**
+ * The result of publishing a single Publication, as emitted by a
+ * PublishProcessor.
+ */
+public class PublicationResult {
+    private final Publication publication;
+    private final PublishResult result;
+
+    /**
+     * Initialize with the publication and the result of publishing it.
+     */
+    public PublicationResult(Publication publication, PublishResult result) {
+        this.publication = publication;
+        this.result = result;
+    }
+
+    /**
+     * The publication that was published.
+     */
+    public Publication getPublication() {
+        return this.publication;
+    }
+
+    /**
+     * The result of publishing to each endpoint.
+     */
+    public PublishResult getResult() {
+        return this.result;
+    }
+
+    /**
+     * Whether the publication was published successfully to every endpoint.
+     */
+    public boolean isSuccess() {
+        return this.result.isSuccess();
+    }
+}
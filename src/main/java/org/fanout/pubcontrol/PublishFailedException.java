@@ -7,11 +7,16 @@
 
 package org.fanout.pubcontrol;
 
+import java.time.Duration;
+
 /**
   This exception is used to indicate that a publish failed to complete.
  */
 public class PublishFailedException extends Exception
 {
+    private int statusCode;
+    private Duration retryAfter;
+
     public PublishFailedException()
     {
     }
@@ -30,4 +35,34 @@ public class PublishFailedException extends Exception
     {
         super(message, cause);
     }
+
+    public PublishFailedException(String message, int statusCode)
+    {
+        super(message);
+        this.statusCode = statusCode;
+    }
+
+    public PublishFailedException(String message, int statusCode,
+            Duration retryAfter)
+    {
+        super(message);
+        this.statusCode = statusCode;
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+      The HTTP status code returned by the endpoint or 0 if no response was received.
+     */
+    public int getStatusCode()
+    {
+        return this.statusCode;
+    }
+
+    /**
+      The delay requested by the endpoint via the Retry-After header or null if none.
+     */
+    public Duration getRetryAfter()
+    {
+        return this.retryAfter;
+    }
 }
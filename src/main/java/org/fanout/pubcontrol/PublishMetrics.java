@@ -0,0 +1,82 @@
+//        PublishMetrics.java
+//        ~~~~~~~~~
+//        This module implements the PublishMetrics interface.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+import java.util.function.IntSupplier;
+
+/**
+ * The PublishMetrics interface is used to instrument a PubControlClient
+ * instance. Its methods are called on the publishing and worker threads
+ * while publishing and must therefore be fast and thread-safe. PublishStats
+ * is the built-in implementation, while other implementations can forward
+ * the measurements to a metrics library of the consumer's choice.
+ */
+public interface PublishMetrics {
+    /**
+     * An implementation that ignores all measurements, used when a client
+     * is not instrumented.
+     */
+    PublishMetrics NONE = new PublishMetrics() {
+        public void attach(String uri, IntSupplier queueSize) { }
+        public void requestQueued() { }
+        public void requestsDropped(int count) { }
+        public void requestDequeued(long queueNanos) { }
+        public void requestSent(int itemCount, int byteCount, long requestNanos,
+                int statusCode) { }
+        public void requestsRetried(int count) { }
+        public void requestCompressed(int byteCount, int compressedByteCount,
+                long cpuNanos) { }
+    };
+
+    /**
+     * The event method indicating that the instrumentation was set on the
+     * client with the specified URI. The supplier returns the number of
+     * async publish requests currently waiting in the queue of the client.
+     */
+    void attach(String uri, IntSupplier queueSize);
+
+    /**
+     * The event method indicating that an async publish request was queued.
+     */
+    void requestQueued();
+
+    /**
+     * The event method indicating that the specified number of async publish
+     * requests were dropped without being sent, for example because the
+     * queue was full.
+     */
+    void requestsDropped(int count);
+
+    /**
+     * The event method indicating that an async publish request was taken
+     * from the queue to be sent after waiting for the specified time.
+     */
+    void requestDequeued(long queueNanos);
+
+    /**
+     * The event method indicating that an HTTP request containing the
+     * specified number of items and encoded bytes was sent and took the
+     * specified time. The status code is 0 if no response was received.
+     */
+    void requestSent(int itemCount, int byteCount, long requestNanos,
+            int statusCode);
+
+    /**
+     * The event method indicating that the specified number of publishes
+     * failed and are going to be retried.
+     */
+    void requestsRetried(int count);
+
+    /**
+     * The event method indicating that the body of an HTTP request was
+     * compressed from the specified number of encoded bytes to the specified
+     * number of compressed bytes using the specified CPU time.
+     */
+    void requestCompressed(int byteCount, int compressedByteCount,
+            long cpuNanos);
+}
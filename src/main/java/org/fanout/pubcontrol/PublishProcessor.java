@@ -0,0 +1,275 @@
+//        PublishProcessor.java
+//        ~~~~~~~~~
+//        This module implements the PublishProcessor class.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Publishes a stream of publications with backpressure. A PublishProcessor
+ * is subscribed to an upstream Flow.Publisher of publications and publishes
+ * each of them asynchronously, so that the publications that arrive
+ * together are sent in batches. The result of every publication is emitted
+ * to the downstream subscriber in the order in which publishing completed.
+ * At most the configured window of publications are requested from
+ * upstream and not yet emitted downstream, so a slow endpoint or a slow
+ * downstream subscriber stops the upstream publisher rather than filling
+ * the queue of the client. The downstream subscriber should subscribe
+ * before the processor is subscribed upstream. While there is no
+ * downstream subscriber the results are discarded. Instances are created
+ * by PubControlClient and PubControl.
+ */
+public class PublishProcessor
+        implements Flow.Processor<Publication, PublicationResult> {
+    private final Function<Publication, CompletableFuture<PublishResult>> publisher;
+    private final int window;
+    private final Lock lock = new ReentrantLock();
+    private final Deque<PublicationResult> results =
+            new ArrayDeque<PublicationResult>();
+    private Flow.Subscription upstream;
+    private Flow.Subscriber<? super PublicationResult> downstream;
+    private boolean subscribed;
+    private boolean cancelled;
+    private boolean upstreamDone;
+    private Throwable upstreamError;
+    private Throwable failure;
+    private boolean terminated;
+    private boolean draining;
+    private long demand;
+    private int inFlight;
+
+    PublishProcessor(Function<Publication, CompletableFuture<PublishResult>> publisher,
+            int window) {
+        if (window < 1)
+            throw new IllegalArgumentException("window must be at least 1");
+        this.publisher = publisher;
+        this.window = window;
+    }
+
+    /**
+     * The maximum number of publications that are requested from upstream
+     * and whose results were not emitted downstream yet.
+     */
+    public int getWindow() {
+        return this.window;
+    }
+
+    /**
+     * Called by the upstream publisher. Requests the initial window of
+     * publications. Any further subscription is cancelled.
+     */
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.lock.lock();
+        boolean accepted = this.upstream == null && !this.cancelled;
+        if (accepted)
+            this.upstream = subscription;
+        this.lock.unlock();
+        if (!accepted) {
+            subscription.cancel();
+            return;
+        }
+        subscription.request(this.window);
+    }
+
+    /**
+     * Called by the upstream publisher for each publication. The
+     * publication is published asynchronously.
+     */
+    public void onNext(final Publication publication) {
+        this.lock.lock();
+        this.inFlight++;
+        this.lock.unlock();
+        CompletableFuture<PublishResult> future;
+        try {
+            future = this.publisher.apply(publication);
+        } catch (RuntimeException exception) {
+            future = new CompletableFuture<PublishResult>();
+            future.completeExceptionally(exception);
+        }
+        future.whenComplete(new BiConsumer<PublishResult, Throwable>() {
+            public void accept(PublishResult result, Throwable error) {
+                completed(publication, result, error);
+            }
+        });
+    }
+
+    /**
+     * Called by the upstream publisher when it failed. The error is passed
+     * downstream once the results of all publications were emitted.
+     */
+    public void onError(Throwable error) {
+        this.lock.lock();
+        this.upstreamDone = true;
+        this.upstreamError = error;
+        this.lock.unlock();
+        this.drain();
+    }
+
+    /**
+     * Called by the upstream publisher when it completed. The downstream
+     * subscriber is completed once the results of all publications were
+     * emitted.
+     */
+    public void onComplete() {
+        this.lock.lock();
+        this.upstreamDone = true;
+        this.lock.unlock();
+        this.drain();
+    }
+
+    /**
+     * Subscribe to the results. Only a single subscriber is supported.
+     * Cancelling the subscription also cancels the upstream subscription.
+     */
+    public void subscribe(Flow.Subscriber<? super PublicationResult> subscriber) {
+        this.lock.lock();
+        boolean accepted = !this.subscribed;
+        this.subscribed = true;
+        this.lock.unlock();
+        if (!accepted) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                public void request(long n) { }
+
+                public void cancel() { }
+            });
+            subscriber.onError(new IllegalStateException(
+                    "PublishProcessor only supports a single subscriber"));
+            return;
+        }
+        subscriber.onSubscribe(new Flow.Subscription() {
+            public void request(long n) {
+                requested(n);
+            }
+
+            public void cancel() {
+                cancelled();
+            }
+        });
+        this.lock.lock();
+        this.downstream = subscriber;
+        this.lock.unlock();
+        this.drain();
+    }
+
+    /**
+     * An internal method that queues the result of a publication for
+     * emission downstream.
+     */
+    private void completed(Publication publication, PublishResult result,
+            Throwable error) {
+        if (error != null) {
+            if (error instanceof CompletionException && error.getCause() != null)
+                error = error.getCause();
+            result = new PublishResult(Collections.singletonList(
+                    new EndpointResult(null, false, 0, Duration.ZERO,
+                    new PublishFailedException("failed to publish: " +
+                    error.getMessage(), error))));
+        }
+        this.lock.lock();
+        this.inFlight--;
+        this.results.addLast(new PublicationResult(publication, result));
+        this.lock.unlock();
+        this.drain();
+    }
+
+    private void requested(long n) {
+        Flow.Subscription upstream = null;
+        this.lock.lock();
+        if (n <= 0) {
+            if (this.failure == null)
+                this.failure = new IllegalArgumentException(
+                        "non-positive subscription request");
+            upstream = this.upstream;
+        } else {
+            this.demand = this.demand + n < 0 ? Long.MAX_VALUE : this.demand + n;
+        }
+        this.lock.unlock();
+        if (upstream != null)
+            upstream.cancel();
+        this.drain();
+    }
+
+    private void cancelled() {
+        this.lock.lock();
+        this.cancelled = true;
+        this.downstream = null;
+        this.results.clear();
+        Flow.Subscription upstream = this.upstream;
+        this.lock.unlock();
+        if (upstream != null)
+            upstream.cancel();
+    }
+
+    /**
+     * An internal method that emits queued results while there is demand,
+     * replenishes the upstream demand for every result that was emitted or
+     * discarded, and terminates the downstream subscriber once upstream is
+     * done and every result was emitted. Only one thread emits at a time.
+     */
+    private void drain() {
+        this.lock.lock();
+        if (this.draining) {
+            this.lock.unlock();
+            return;
+        }
+        this.draining = true;
+        while (true) {
+            Flow.Subscriber<? super PublicationResult> subscriber = this.downstream;
+            Flow.Subscription upstream = this.upstreamDone ||
+                    this.failure != null ? null : this.upstream;
+            PublicationResult result = null;
+            int replenish = 0;
+            boolean terminate = false;
+            if (!this.subscribed || this.cancelled || this.terminated ||
+                    this.failure != null) {
+                replenish = this.results.size();
+                this.results.clear();
+            } else if (subscriber != null && this.demand > 0 &&
+                    !this.results.isEmpty()) {
+                result = this.results.removeFirst();
+                if (this.demand != Long.MAX_VALUE)
+                    this.demand--;
+                replenish = 1;
+            }
+            if (subscriber != null && !this.terminated && (this.failure != null ||
+                    this.upstreamDone && this.inFlight == 0 &&
+                    this.results.isEmpty())) {
+                this.terminated = true;
+                terminate = true;
+            }
+            Throwable error = this.failure != null ? this.failure :
+                    this.upstreamError;
+            if (result == null && !terminate && replenish == 0) {
+                this.draining = false;
+                this.lock.unlock();
+                return;
+            }
+            this.lock.unlock();
+            if (result != null) {
+                try {
+                    subscriber.onNext(result);
+                } catch (RuntimeException exception) {
+                    this.cancelled();
+                }
+            }
+            if (upstream != null && replenish > 0)
+                upstream.request(replenish);
+            if (terminate) {
+                if (error != null)
+                    subscriber.onError(error);
+                else
+                    subscriber.onComplete();
+            }
+            this.lock.lock();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+//        PublishResult.java
+//        ~~~~~~~~~
+//        This module implements the PublishResult class.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+import java.util.*;
+
+/**
+ * The aggregated result of publishing to one or more endpoints. A publish
+ * is successful only if it succeeded on every endpoint. The result of each
+ * individual endpoint is available via getEndpointResults.
+ */
+public class PublishResult {
+    private List<EndpointResult> endpointResults;
+
+    /**
+     * Initialize with the results of the individual endpoints.
+     */
+    public PublishResult(List<EndpointResult> endpointResults) {
+        this.endpointResults = Collections.unmodifiableList(
+                new ArrayList<EndpointResult>(endpointResults));
+    }
+
+    /**
+     * Whether the publish succeeded on every endpoint.
+     */
+    public boolean isSuccess() {
+        for (EndpointResult result : this.endpointResults)
+            if (!result.isSuccess())
+                return false;
+        return true;
+    }
+
+    /**
+     * The results of the individual endpoints.
+     */
+    public List<EndpointResult> getEndpointResults() {
+        return this.endpointResults;
+    }
+
+    /**
+     * The results of the endpoints on which the publish failed.
+     */
+    public List<EndpointResult> getFailures() {
+        List<EndpointResult> failures = new ArrayList<EndpointResult>();
+        for (EndpointResult result : this.endpointResults)
+            if (!result.isSuccess())
+                failures.add(result);
+        return failures;
+    }
+
+    /**
+     * The error message of the first failed endpoint or null if the publish
+     * succeeded on every endpoint.
+     */
+    public String getFirstErrorMessage() {
+        for (EndpointResult result : this.endpointResults)
+            if (!result.isSuccess())
+                return result.getErrorMessage();
+        return null;
+    }
+}
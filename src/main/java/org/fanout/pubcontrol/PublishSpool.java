@@ -0,0 +1,263 @@
+//        PublishSpool.java
+//        ~~~~~~~~~
+//        This module implements the PublishSpool class.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * An on-disk write-ahead log of the asynchronous publishes of a
+ * PubControlClient instance. Each publish is appended to a memory-mapped
+ * segment file before it is queued and marked as completed once the
+ * endpoint acknowledged it or it failed permanently. Segments are rotated
+ * when full and deleted once all of their publishes are completed. When a
+ * spool is opened on a directory that contains segments from a previous
+ * process, the publishes that were not completed are published again when
+ * the spool is set on a client, so that delivery survives restarts.
+ * Publishes survive a crash of the process as soon as they are appended,
+ * while segments are only forced to the storage device when they are
+ * rotated and when the spool is closed. A spool directory must only be
+ * used by a single PubControlClient instance.
+ */
+public class PublishSpool implements Closeable {
+    /**
+     * The default size of a segment file.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final int HEADER_SIZE = 9;
+    private static final byte PENDING = 0;
+    private static final byte COMPLETED = 1;
+    private static final String SEGMENT_PREFIX = "spool-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final List<Record> recovered = new ArrayList<Record>();
+    private Segment active;
+    private int writePosition;
+    private long nextSequence;
+    private int pendingCount;
+    private boolean closed;
+
+    /**
+     * Initialize with the directory that holds the segment files, which is
+     * created if it does not exist, using the default segment size.
+     */
+    public PublishSpool(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Initialize with the directory that holds the segment files, which is
+     * created if it does not exist, and the size of each segment file.
+     * Publishes that are larger than the segment size are written to a
+     * segment of their own.
+     */
+    public PublishSpool(Path directory, int segmentSize) throws IOException {
+        if (segmentSize <= HEADER_SIZE)
+            throw new IllegalArgumentException("segmentSize is too small");
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        this.recover();
+    }
+
+    /**
+     * The number of spooled publishes that have not completed yet.
+     */
+    public synchronized int getPendingCount() {
+        return this.pendingCount;
+    }
+
+    /**
+     * Force the current segment to the storage device and stop accepting
+     * publishes. Publishes that are still pending are published again the
+     * next time the directory is opened.
+     */
+    public synchronized void close() throws IOException {
+        if (this.closed)
+            return;
+        this.closed = true;
+        if (this.active != null)
+            this.active.buffer.force();
+    }
+
+    /**
+     * An internal method that returns the publishes recovered from a
+     * previous process that have not been handed out yet.
+     */
+    synchronized List<Record> takeRecovered() {
+        List<Record> records = new ArrayList<Record>(this.recovered);
+        this.recovered.clear();
+        return records;
+    }
+
+    /**
+     * An internal method that appends an encoded publish of the specified
+     * size and number of items to the spool.
+     */
+    synchronized Record append(List<ByteBuffer> items, int size, int itemCount)
+            throws IOException {
+        if (this.closed)
+            throw new IOException("spool is closed");
+        int length = HEADER_SIZE + size;
+        if (this.active == null ||
+                this.active.buffer.capacity() - this.writePosition < length)
+            this.rotate(length);
+        MappedByteBuffer buffer = this.active.buffer;
+        int position = this.writePosition;
+        buffer.put(position + 4, PENDING);
+        buffer.putInt(position + 5, itemCount);
+        ByteBuffer out = buffer.duplicate();
+        out.position(position + HEADER_SIZE);
+        for (ByteBuffer item : items)
+            out.put(item.duplicate());
+        // The length is written last so that a publish that was only
+        // partially written when the process died is never recovered.
+        buffer.putInt(position, size);
+        this.writePosition = position + length;
+        this.active.pending++;
+        this.pendingCount++;
+        return new Record(this, this.active, position, null, itemCount);
+    }
+
+    /**
+     * An internal method that marks a spooled publish as completed and
+     * deletes its segment if it was the last pending publish in it.
+     */
+    synchronized void complete(Record record) {
+        if (record.completed)
+            return;
+        record.completed = true;
+        Segment segment = record.segment;
+        segment.buffer.put(record.position + 4, COMPLETED);
+        this.pendingCount--;
+        if (--segment.pending == 0 && segment != this.active)
+            this.delete(segment);
+    }
+
+    private void recover() throws IOException {
+        List<Path> paths = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+                this.directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream)
+                paths.add(path);
+        }
+        Collections.sort(paths);
+        for (Path path : paths) {
+            String name = path.getFileName().toString();
+            long sequence;
+            try {
+                sequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                        name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException exception) {
+                // Not a segment written by the spool, so it is left alone.
+                continue;
+            }
+            this.nextSequence = Math.max(this.nextSequence, sequence + 1);
+            Segment segment = new Segment(path, this.map(path, 0));
+            MappedByteBuffer buffer = segment.buffer;
+            int position = 0;
+            while (buffer.capacity() - position >= HEADER_SIZE) {
+                int size = buffer.getInt(position);
+                if (size <= 0 || buffer.capacity() - position - HEADER_SIZE < size)
+                    break;
+                if (buffer.get(position + 4) == PENDING) {
+                    ByteBuffer items = buffer.duplicate();
+                    items.position(position + HEADER_SIZE);
+                    items.limit(position + HEADER_SIZE + size);
+                    this.recovered.add(new Record(this, segment, position,
+                            items.slice().asReadOnlyBuffer(),
+                            buffer.getInt(position + 5)));
+                    segment.pending++;
+                    this.pendingCount++;
+                }
+                position += HEADER_SIZE + size;
+            }
+            if (segment.pending == 0)
+                this.delete(segment);
+        }
+    }
+
+    private void rotate(int length) throws IOException {
+        if (this.active != null) {
+            this.active.buffer.force();
+            if (this.active.pending == 0)
+                this.delete(this.active);
+        }
+        Path path = this.directory.resolve(String.format("%s%020d%s",
+                SEGMENT_PREFIX, this.nextSequence++, SEGMENT_SUFFIX));
+        this.active = new Segment(path, this.map(path,
+                Math.max(this.segmentSize, length)));
+        this.writePosition = 0;
+    }
+
+    private MappedByteBuffer map(Path path, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            long mapSize = size > 0 ? size : channel.size();
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, mapSize);
+        }
+    }
+
+    private void delete(Segment segment) {
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException exception) { }
+    }
+
+    /**
+     * A memory-mapped segment file and the number of its pending publishes.
+     */
+    private static class Segment {
+        final Path path;
+        final MappedByteBuffer buffer;
+        int pending;
+
+        Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Used internally to refer to a spooled publish. Recovered publishes
+     * also carry their encoded items.
+     */
+    static class Record {
+        final PublishSpool spool;
+        final ByteBuffer items;
+        final int itemCount;
+        private final Segment segment;
+        private final int position;
+        private boolean completed;
+
+        Record(PublishSpool spool, Segment segment, int position,
+                ByteBuffer items, int itemCount) {
+            this.spool = spool;
+            this.segment = segment;
+            this.position = position;
+            this.items = items;
+            this.itemCount = itemCount;
+        }
+
+        /**
+         * Mark the publish as completed.
+         */
+        void complete() {
+            this.spool.complete(this);
+        }
+    }
+}
@@ -0,0 +1,272 @@
+//        PublishStats.java
+//        ~~~~~~~~~
+//        This module implements the PublishStats class.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * The built-in PublishMetrics implementation, which keeps counters and
+ * histograms of the publishes of a single PubControlClient instance in
+ * memory. Counters are LongAdder instances so that concurrent workers do
+ * not contend on them, and nothing is allocated while recording. The
+ * statistics can be read directly or exposed over JMX by calling
+ * registerMBean.
+ */
+public class PublishStats implements PublishMetrics, PublishStatsMXBean {
+    private static final int MAX_STATUS_CODE = 599;
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failedRequests = new LongAdder();
+    private final LongAdder items = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder compressedRequests = new LongAdder();
+    private final LongAdder compressionInputBytes = new LongAdder();
+    private final LongAdder compressionOutputBytes = new LongAdder();
+    private final LongAdder compressionCpuNanos = new LongAdder();
+    private final AtomicLongArray statusCodes =
+            new AtomicLongArray(MAX_STATUS_CODE + 1);
+    private final Histogram queueTime = new Histogram();
+    private final Histogram requestTime = new Histogram();
+    private final Histogram batchItems = new Histogram();
+    private final Histogram batchBytes = new Histogram();
+    private volatile String uri;
+    private volatile IntSupplier queueSize;
+
+    public void attach(String uri, IntSupplier queueSize) {
+        this.uri = uri;
+        this.queueSize = queueSize;
+    }
+
+    public void requestQueued() {
+        this.queued.increment();
+    }
+
+    public void requestsDropped(int count) {
+        this.dropped.add(count);
+    }
+
+    public void requestDequeued(long queueNanos) {
+        this.queueTime.record(queueNanos);
+    }
+
+    public void requestSent(int itemCount, int byteCount, long requestNanos,
+            int statusCode) {
+        this.requests.increment();
+        this.items.add(itemCount);
+        this.bytes.add(byteCount);
+        this.batchItems.record(itemCount);
+        this.batchBytes.record(byteCount);
+        this.requestTime.record(requestNanos);
+        if (statusCode < 200 || statusCode >= 300)
+            this.failedRequests.increment();
+        if (statusCode >= 0 && statusCode <= MAX_STATUS_CODE)
+            this.statusCodes.incrementAndGet(statusCode);
+    }
+
+    public void requestsRetried(int count) {
+        this.retried.add(count);
+    }
+
+    public void requestCompressed(int byteCount, int compressedByteCount,
+            long cpuNanos) {
+        this.compressedRequests.increment();
+        this.compressionInputBytes.add(byteCount);
+        this.compressionOutputBytes.add(compressedByteCount);
+        this.compressionCpuNanos.add(cpuNanos);
+    }
+
+    /**
+     * Register these statistics with the platform MBean server under the
+     * specified name, which must be unique within the process, and return
+     * the object name they were registered under.
+     */
+    public ObjectName registerMBean(String name) throws JMException {
+        ObjectName objectName = new ObjectName(
+                "org.fanout.pubcontrol:type=PublishStats,name=" +
+                ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                objectName);
+        return objectName;
+    }
+
+    /**
+     * The URI of the client these statistics were attached to.
+     */
+    public String getUri() {
+        return this.uri;
+    }
+
+    /**
+     * The number of async publish requests currently waiting in the queue.
+     */
+    public int getQueueSize() {
+        IntSupplier queueSize = this.queueSize;
+        return queueSize != null ? queueSize.getAsInt() : 0;
+    }
+
+    /**
+     * The number of async publish requests that were queued.
+     */
+    public long getQueuedCount() {
+        return this.queued.sum();
+    }
+
+    /**
+     * The number of async publish requests that were dropped without being
+     * sent.
+     */
+    public long getDroppedCount() {
+        return this.dropped.sum();
+    }
+
+    /**
+     * The number of publishes that were retried.
+     */
+    public long getRetriedCount() {
+        return this.retried.sum();
+    }
+
+    /**
+     * The number of HTTP requests that were sent.
+     */
+    public long getRequestCount() {
+        return this.requests.sum();
+    }
+
+    /**
+     * The number of HTTP requests that received no response or a response
+     * with a non-2xx status code.
+     */
+    public long getFailedRequestCount() {
+        return this.failedRequests.sum();
+    }
+
+    /**
+     * The number of items that were sent, counting each channel of a
+     * publish as one item.
+     */
+    public long getItemCount() {
+        return this.items.sum();
+    }
+
+    /**
+     * The number of encoded bytes that were sent.
+     */
+    public long getByteCount() {
+        return this.bytes.sum();
+    }
+
+    /**
+     * The number of HTTP requests that were sent by status code, where 0
+     * means that no response was received.
+     */
+    public Map<Integer, Long> getStatusCodeCounts() {
+        Map<Integer, Long> counts = new TreeMap<Integer, Long>();
+        for (int n = 0; n <= MAX_STATUS_CODE; n++) {
+            long count = this.statusCodes.get(n);
+            if (count > 0)
+                counts.put(n, count);
+        }
+        return counts;
+    }
+
+    /**
+     * The histogram of the time async publish requests spent in the queue
+     * before being sent, in nanoseconds.
+     */
+    public Histogram getQueueTime() {
+        return this.queueTime;
+    }
+
+    /**
+     * The histogram of the time HTTP requests took, in nanoseconds.
+     */
+    public Histogram getRequestTime() {
+        return this.requestTime;
+    }
+
+    /**
+     * The histogram of the number of items per HTTP request.
+     */
+    public Histogram getBatchItems() {
+        return this.batchItems;
+    }
+
+    /**
+     * The histogram of the number of encoded bytes per HTTP request.
+     */
+    public Histogram getBatchBytes() {
+        return this.batchBytes;
+    }
+
+    public double getQueueTimeMeanMillis() {
+        return this.queueTime.getMean() / NANOS_PER_MILLI;
+    }
+
+    public double getQueueTime99thPercentileMillis() {
+        return this.queueTime.getValueAtPercentile(99) / NANOS_PER_MILLI;
+    }
+
+    public double getRequestTimeMeanMillis() {
+        return this.requestTime.getMean() / NANOS_PER_MILLI;
+    }
+
+    public double getRequestTime50thPercentileMillis() {
+        return this.requestTime.getValueAtPercentile(50) / NANOS_PER_MILLI;
+    }
+
+    public double getRequestTime99thPercentileMillis() {
+        return this.requestTime.getValueAtPercentile(99) / NANOS_PER_MILLI;
+    }
+
+    public double getRequestTimeMaxMillis() {
+        return this.requestTime.getMax() / NANOS_PER_MILLI;
+    }
+
+    public double getBatchItemsMean() {
+        return this.batchItems.getMean();
+    }
+
+    public double getBatchBytesMean() {
+        return this.batchBytes.getMean();
+    }
+
+    /**
+     * The number of HTTP requests whose body was compressed.
+     */
+    public long getCompressedRequestCount() {
+        return this.compressedRequests.sum();
+    }
+
+    /**
+     * The ratio of encoded bytes to compressed bytes over all compressed
+     * request bodies, or 0 if no request body was compressed.
+     */
+    public double getCompressionRatio() {
+        long compressed = this.compressionOutputBytes.sum();
+        return compressed > 0 ?
+                (double)this.compressionInputBytes.sum() / compressed : 0;
+    }
+
+    /**
+     * The CPU time spent compressing request bodies in milliseconds.
+     */
+    public double getCompressionCpuMillis() {
+        return this.compressionCpuNanos.sum() / NANOS_PER_MILLI;
+    }
+}
@@ -0,0 +1,38 @@
+//        PublishStatsMXBean.java
+//        ~~~~~~~~~
+//        This module implements the PublishStatsMXBean interface.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+import java.util.Map;
+
+/**
+ * The management interface through which PublishStats instances are
+ * exposed over JMX. Times are reported in milliseconds.
+ */
+public interface PublishStatsMXBean {
+    String getUri();
+    int getQueueSize();
+    long getQueuedCount();
+    long getDroppedCount();
+    long getRetriedCount();
+    long getRequestCount();
+    long getFailedRequestCount();
+    long getItemCount();
+    long getByteCount();
+    Map<Integer, Long> getStatusCodeCounts();
+    double getQueueTimeMeanMillis();
+    double getQueueTime99thPercentileMillis();
+    double getRequestTimeMeanMillis();
+    double getRequestTime50thPercentileMillis();
+    double getRequestTime99thPercentileMillis();
+    double getRequestTimeMaxMillis();
+    double getBatchItemsMean();
+    double getBatchBytesMean();
+    long getCompressedRequestCount();
+    double getCompressionRatio();
+    double getCompressionCpuMillis();
+}
@@ -0,0 +1,41 @@
+//        RecentIds.java
+//        ~~~~~~~~~
+//        This module implements the RecentIds class.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+import java.util.*;
+
+/**
+ * Used internally by PubControlClient to remember the keys of the most
+ * recently published items so that duplicates can be dropped. Holds up to
+ * a fixed number of keys and forgets the oldest key when full.
+ */
+class RecentIds {
+    private final LinkedHashMap<String, Boolean> keys;
+
+    RecentIds(final int capacity) {
+        this.keys = new LinkedHashMap<String, Boolean>(16, 0.75f, false) {
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Remember the key and return whether it was not already known.
+     */
+    synchronized boolean add(String key) {
+        return this.keys.put(key, Boolean.TRUE) == null;
+    }
+
+    /**
+     * Forget the key, for example because publishing the item failed.
+     */
+    synchronized void remove(String key) {
+        this.keys.remove(key);
+    }
+}
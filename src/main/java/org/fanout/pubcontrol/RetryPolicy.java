@@ -0,0 +1,145 @@
+//        RetryPolicy.java
+//        ~~~~~~~~~
+//        This module implements the RetryPolicy class.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Determines whether and when a failed publish is retried by a
+ * PubControlClient instance. A publish is retried if the endpoint responded
+ * with one of the retryable status codes or if no response was received due
+ * to an I/O error, and fewer than the maximum number of attempts were made.
+ * The delay before each retry grows exponentially from the initial backoff
+ * up to the maximum backoff and is randomized with full jitter. A delay
+ * requested by the endpoint via the Retry-After header is honored up to
+ * the maximum backoff.
+ */
+public class RetryPolicy {
+    /**
+     * The status codes that are retried by default.
+     */
+    public static final Set<Integer> DEFAULT_RETRYABLE_STATUS_CODES =
+            Collections.unmodifiableSet(new HashSet<Integer>(
+            Arrays.asList(429, 502, 503, 504)));
+
+    /**
+     * A policy that never retries.
+     */
+    public static final RetryPolicy NONE = new RetryPolicy(1, Duration.ZERO,
+            Duration.ZERO);
+
+    private final int maxAttempts;
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+    private final Set<Integer> retryableStatusCodes;
+
+    /**
+     * Initialize with the maximum number of attempts including the first
+     * one, the initial backoff and the maximum backoff. The default
+     * retryable status codes are used.
+     */
+    public RetryPolicy(int maxAttempts, Duration initialBackoff,
+            Duration maxBackoff) {
+        this(maxAttempts, initialBackoff, maxBackoff,
+                DEFAULT_RETRYABLE_STATUS_CODES);
+    }
+
+    /**
+     * Initialize with the maximum number of attempts including the first
+     * one, the initial backoff, the maximum backoff and the status codes
+     * that are retried.
+     */
+    public RetryPolicy(int maxAttempts, Duration initialBackoff,
+            Duration maxBackoff, Set<Integer> retryableStatusCodes) {
+        if (maxAttempts < 1)
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        if (initialBackoff.isNegative() || maxBackoff.compareTo(initialBackoff) < 0)
+            throw new IllegalArgumentException("invalid backoff");
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffNanos = initialBackoff.toNanos();
+        this.maxBackoffNanos = maxBackoff.toNanos();
+        this.retryableStatusCodes = Collections.unmodifiableSet(
+                new HashSet<Integer>(retryableStatusCodes));
+    }
+
+    /**
+     * The maximum number of attempts including the first one.
+     */
+    public int getMaxAttempts() {
+        return this.maxAttempts;
+    }
+
+    /**
+     * Whether the failure is retryable, not taking the number of attempts
+     * into account.
+     */
+    public boolean isRetryable(PublishFailedException failure) {
+        if (failure.getStatusCode() == 0)
+            return failure.getCause() instanceof IOException;
+        return this.retryableStatusCodes.contains(failure.getStatusCode());
+    }
+
+    /**
+     * Whether a publish that failed with the specified failure after the
+     * specified number of attempts should be retried.
+     */
+    public boolean shouldRetry(PublishFailedException failure, int attempts) {
+        return attempts < this.maxAttempts && this.isRetryable(failure);
+    }
+
+    /**
+     * The delay in nanoseconds before the next attempt after the specified
+     * number of attempts failed. The Retry-After delay of the failure,
+     * capped at the maximum backoff, is used if it is longer than the
+     * computed backoff.
+     */
+    public long getBackoffNanos(int attempts, PublishFailedException failure) {
+        long ceiling = this.initialBackoffNanos;
+        for (int n = 1; n < attempts && ceiling < this.maxBackoffNanos; n++)
+            ceiling *= 2;
+        ceiling = Math.min(ceiling, this.maxBackoffNanos);
+        long backoff = ceiling > 0 ?
+                ThreadLocalRandom.current().nextLong(ceiling + 1) : 0;
+        Duration retryAfter = failure != null ? failure.getRetryAfter() : null;
+        if (retryAfter != null) {
+            long requested = retryAfter.compareTo(
+                    Duration.ofNanos(this.maxBackoffNanos)) < 0 ?
+                    retryAfter.toNanos() : this.maxBackoffNanos;
+            backoff = Math.max(backoff, requested);
+        }
+        return backoff;
+    }
+
+    /**
+     * An internal method that parses the value of a Retry-After header,
+     * which is either a number of seconds or an HTTP date. Returns null if
+     * the value is missing or invalid.
+     */
+    static Duration parseRetryAfter(String value) {
+        if (value == null)
+            return null;
+        value = value.trim();
+        try {
+            long seconds = Long.parseLong(value);
+            return seconds >= 0 ? Duration.ofSeconds(seconds) : null;
+        } catch (NumberFormatException exception) { }
+        try {
+            Duration delay = Duration.between(ZonedDateTime.now(),
+                    ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME));
+            return delay.isNegative() ? Duration.ZERO : delay;
+        } catch (DateTimeParseException exception) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+//        ShutdownResult.java
+//        ~~~~~~~~~
+//        This module implements the ShutdownResult class.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+import java.util.*;
+
+/**
+ * The outcome of shutting down asynchronous publishing. Counts the
+ * asynchronous publishes that completed successfully or failed while the
+ * shutdown was in progress, the publishes that were abandoned without
+ * being sent and the publishes that were still being sent when the
+ * shutdown returned, whose callbacks are called once they complete. The
+ * abandoned publishes are handed back so that they can be published again
+ * later. Publishes that were recovered from a spool cannot be handed back
+ * and are instead published again when the spool is reopened.
+ */
+public class ShutdownResult {
+    private final long flushedCount;
+    private final long failedCount;
+    private final int abandonedCount;
+    private final int inFlightCount;
+    private final List<Publication> abandoned;
+
+    /**
+     * Initialize with the number of flushed, failed, abandoned and in-flight
+     * publishes and the abandoned publications.
+     */
+    public ShutdownResult(long flushedCount, long failedCount,
+            int abandonedCount, int inFlightCount, List<Publication> abandoned) {
+        this.flushedCount = flushedCount;
+        this.failedCount = failedCount;
+        this.abandonedCount = abandonedCount;
+        this.inFlightCount = inFlightCount;
+        this.abandoned = Collections.unmodifiableList(
+                new ArrayList<Publication>(abandoned));
+    }
+
+    /**
+     * Whether all publishing completed before the shutdown returned.
+     */
+    public boolean isComplete() {
+        return this.abandonedCount == 0 && this.inFlightCount == 0;
+    }
+
+    /**
+     * The number of publishes that completed successfully during the
+     * shutdown, including publishes that were coalesced.
+     */
+    public long getFlushedCount() {
+        return this.flushedCount;
+    }
+
+    /**
+     * The number of publishes that failed during the shutdown.
+     */
+    public long getFailedCount() {
+        return this.failedCount;
+    }
+
+    /**
+     * The number of publishes that were removed from the queue without
+     * being sent. Their callbacks are called with a failed result.
+     */
+    public int getAbandonedCount() {
+        return this.abandonedCount;
+    }
+
+    /**
+     * The number of publishes that were still being sent when the shutdown
+     * returned.
+     */
+    public int getInFlightCount() {
+        return this.inFlightCount;
+    }
+
+    /**
+     * The abandoned publishes, in the order in which they were queued.
+     */
+    public List<Publication> getAbandoned() {
+        return this.abandoned;
+    }
+
+    /**
+     * An internal method that sums up the results of several clients.
+     */
+    static ShutdownResult combine(List<ShutdownResult> results) {
+        long flushedCount = 0;
+        long failedCount = 0;
+        int abandonedCount = 0;
+        int inFlightCount = 0;
+        List<Publication> abandoned = new ArrayList<Publication>();
+        for (ShutdownResult result : results) {
+            flushedCount += result.flushedCount;
+            failedCount += result.failedCount;
+            abandonedCount += result.abandonedCount;
+            inFlightCount += result.inFlightCount;
+            abandoned.addAll(result.abandoned);
+        }
+        return new ShutdownResult(flushedCount, failedCount, abandonedCount,
+                inFlightCount, abandoned);
+    }
+}
@@ -0,0 +1,27 @@
+//        StreamingFormat.java
+//        ~~~~~~~~~
+//        This module implements the StreamingFormat interface.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+import java.io.IOException;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * An optional extension of Format for formats that write themselves as
+ * JSON. When an item is published the writeJson method is used instead of
+ * export, so that no intermediate maps are built and no reflection is
+ * needed to encode the format. The export method is still used by
+ * Item.export and must produce an equivalent object.
+ */
+public interface StreamingFormat extends Format {
+
+    /**
+     * Write the exported value of the format, typically a JSON object, to
+     * the writer as a single value.
+     */
+    void writeJson(JsonWriter writer) throws IOException;
+}
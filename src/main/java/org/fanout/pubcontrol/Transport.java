@@ -0,0 +1,30 @@
+//        Transport.java
+//        ~~~~~~~~~
+//        This module implements the Transport interface.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * The Transport interface is used by PubControlClient to send publish
+ * requests to an endpoint. Implementations are expected to be thread-safe
+ * and to reuse connections across calls. The default implementation is
+ * HttpClientTransport.
+ */
+public interface Transport {
+    /**
+     * Send a POST request to the URI with the specified headers and return
+     * the response. The body is the concatenation of the remaining bytes of
+     * the specified buffers, which must not be modified. An IOException
+     * should be thrown if no response could be obtained from the endpoint.
+     */
+    TransportResponse send(URI uri, Map<String, String> headers,
+            List<ByteBuffer> body) throws IOException, InterruptedException;
+}
@@ -0,0 +1,54 @@
+//        TransportResponse.java
+//        ~~~~~~~~~
+//        This module implements the TransportResponse class.
+//        :authors: Konstantin Bokarius.
+//        :copyright: (c) 2015 by Fanout, Inc.
+//        :license: MIT, see LICENSE for more details.
+
+package org.fanout.pubcontrol;
+
+import java.util.*;
+
+/**
+ * Contains the status code, headers and body of a response returned by a
+ * Transport implementation.
+ */
+public class TransportResponse {
+    private int statusCode;
+    private Map<String, String> headers;
+    private String body;
+
+    /**
+     * Initialize with the status code, response headers and response body.
+     * Header names are matched case-insensitively.
+     */
+    public TransportResponse(int statusCode, Map<String, String> headers,
+            String body) {
+        this.statusCode = statusCode;
+        this.headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        if (headers != null)
+            this.headers.putAll(headers);
+        this.body = body;
+    }
+
+    /**
+     * The HTTP status code of the response.
+     */
+    public int getStatusCode() {
+        return this.statusCode;
+    }
+
+    /**
+     * The value of the specified response header or null if not present.
+     */
+    public String getHeader(String name) {
+        return this.headers.get(name);
+    }
+
+    /**
+     * The body of the response.
+     */
+    public String getBody() {
+        return this.body;
+    }
+}
@@ -0,0 +1,43 @@
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import org.fanout.pubcontrol.*;
+
+public class HistogramTest {
+    @Test
+    public void testEmpty() {
+        Histogram histogram = new Histogram();
+        assertEquals(histogram.getCount(), 0);
+        assertEquals(histogram.getValueAtPercentile(99), 0);
+        assertEquals(histogram.getMean(), 0, 0);
+    }
+
+    @Test
+    public void testPercentiles() {
+        Histogram histogram = new Histogram();
+        for (int n = 1; n <= 1000; n++)
+            histogram.record(n * 1000L);
+        assertEquals(histogram.getCount(), 1000);
+        assertEquals(histogram.getMax(), 1000000);
+        assertEquals(histogram.getMean(), 500500, 0.001);
+        long p50 = histogram.getValueAtPercentile(50);
+        assertTrue(p50 >= 500000 && p50 <= 500000 * 1.125);
+        long p99 = histogram.getValueAtPercentile(99);
+        assertTrue(p99 >= 990000 && p99 <= 1000000);
+        assertEquals(histogram.getValueAtPercentile(100), 1000000);
+    }
+
+    @Test
+    public void testSmallAndLargeValues() {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+        histogram.record(3);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(histogram.getValueAtPercentile(1), 0);
+        assertEquals(histogram.getValueAtPercentile(50), 3);
+        assertEquals(histogram.getValueAtPercentile(100), Long.MAX_VALUE);
+        histogram.reset();
+        assertEquals(histogram.getCount(), 0);
+        assertEquals(histogram.getMax(), 0);
+    }
+}
@@ -41,6 +41,56 @@ public class PccCallbackHandlerTest {
         assertEquals(callback.callbackMessage, "error");
     }
 
+    @Test
+    public void testHandlerErrorMessages() {
+        Callback callback = new Callback();
+        PccCallbackHandler handler = new PccCallbackHandler(3, callback);
+        handler.completed(false, "error1");
+        handler.completed(true, null);
+        handler.completed(false, "error2");
+        assertEquals(handler.isComplete(), true);
+        assertEquals(handler.getSuccessCount(), 1);
+        assertEquals(handler.getErrorMessages(), Arrays.asList("error1", "error2"));
+        assertEquals(callback.callbackMessage, "error1");
+    }
+
+    @Test
+    public void testHandlerConcurrent() throws InterruptedException {
+        for (int run = 0; run < 50; run++) {
+            final CountingCallback callback = new CountingCallback();
+            final PccCallbackHandler handler = new PccCallbackHandler(16, callback);
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int n = 0; n < 16; n++) {
+                final boolean success = n != 7;
+                threads.add(new Thread(new Runnable() {
+                    public void run() {
+                        handler.completed(success, success ? null : "error");
+                    }
+                }));
+            }
+            for (Thread thread : threads)
+                thread.start();
+            for (Thread thread : threads)
+                thread.join();
+            assertEquals(callback.calls.get(), 1);
+            assertEquals(callback.callbackResult, false);
+            assertEquals(callback.callbackMessage, "error");
+        }
+    }
+
+    private class CountingCallback implements PublishCallback {
+        public java.util.concurrent.atomic.AtomicInteger calls =
+                new java.util.concurrent.atomic.AtomicInteger();
+        public volatile boolean callbackResult = false;
+        public volatile String callbackMessage = null;
+
+        public void completed(boolean result, String errorMessage) {
+            this.callbackResult = result;
+            this.callbackMessage = errorMessage;
+            this.calls.incrementAndGet();
+        }
+    }
+
     private class Callback implements PublishCallback {
         public boolean callbackExecuted = false;
         public boolean callbackResult = false;
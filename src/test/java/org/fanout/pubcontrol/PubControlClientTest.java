@@ -0,0 +1,1123 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import com.google.gson.*;
+import com.google.gson.stream.JsonWriter;
+import com.sun.net.httpserver.*;
+import org.fanout.pubcontrol.*;
+
+public class PubControlClientTest {
+    private HttpServer server;
+    private List<String> bodies;
+    private List<String> authHeaders;
+    private List<String> contentEncodings;
+    private Set<Integer> remotePorts;
+    private List<String> upgradeHeaders;
+    private int responseCode;
+    private long responseDelayMillis;
+    private String retryAfter;
+    private AtomicInteger failuresBeforeSuccess;
+    private AtomicInteger inFlight;
+    private AtomicInteger maxInFlight;
+    private volatile CountDownLatch requestArrived;
+    private volatile CountDownLatch responseGate;
+
+    @Before
+    public void setUp() throws IOException {
+        this.bodies = Collections.synchronizedList(new ArrayList<String>());
+        this.authHeaders = Collections.synchronizedList(new ArrayList<String>());
+        this.contentEncodings = Collections.synchronizedList(new ArrayList<String>());
+        this.remotePorts = Collections.synchronizedSet(new HashSet<Integer>());
+        this.upgradeHeaders = Collections.synchronizedList(new ArrayList<String>());
+        this.responseCode = 200;
+        this.responseDelayMillis = 0;
+        this.retryAfter = null;
+        this.failuresBeforeSuccess = new AtomicInteger();
+        this.inFlight = new AtomicInteger();
+        this.maxInFlight = new AtomicInteger();
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.server.createContext("/publish/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                int current = inFlight.incrementAndGet();
+                while (current > maxInFlight.get())
+                    maxInFlight.set(current);
+                CountDownLatch arrived = requestArrived;
+                if (arrived != null)
+                    arrived.countDown();
+                try {
+                    CountDownLatch gate = responseGate;
+                    if (gate != null)
+                        gate.await(10, TimeUnit.SECONDS);
+                    Thread.sleep(responseDelayMillis);
+                } catch (InterruptedException exception) { }
+                InputStream in = exchange.getRequestBody();
+                String encoding = exchange.getRequestHeaders().getFirst(
+                        "Content-Encoding");
+                contentEncodings.add(encoding);
+                if ("gzip".equals(encoding))
+                    in = new java.util.zip.GZIPInputStream(in);
+                else if ("deflate".equals(encoding))
+                    in = new java.util.zip.InflaterInputStream(in);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buf = new byte[4096];
+                int n;
+                while ((n = in.read(buf)) > 0)
+                    out.write(buf, 0, n);
+                bodies.add(new String(out.toByteArray(), StandardCharsets.UTF_8));
+                authHeaders.add(exchange.getRequestHeaders().getFirst("Authorization"));
+                remotePorts.add(exchange.getRemoteAddress().getPort());
+                upgradeHeaders.add(exchange.getRequestHeaders().getFirst("Upgrade"));
+                byte[] response = "ok".getBytes(StandardCharsets.UTF_8);
+                int code = failuresBeforeSuccess.getAndDecrement() > 0 ?
+                        503 : responseCode;
+                if (code == 503 && retryAfter != null)
+                    exchange.getResponseHeaders().set("Retry-After", retryAfter);
+                exchange.sendResponseHeaders(code, response.length);
+                exchange.getResponseBody().write(response);
+                inFlight.decrementAndGet();
+                exchange.close();
+            }
+        });
+        this.server.setExecutor(Executors.newCachedThreadPool());
+        this.server.start();
+    }
+
+    @After
+    public void tearDown() {
+        this.server.stop(0);
+    }
+
+    private String uri() {
+        return "http://127.0.0.1:" + this.server.getAddress().getPort();
+    }
+
+    private Item item(String body) {
+        List<Format> formats = new ArrayList<Format>();
+        formats.add(new TestFormat(body));
+        return new Item(formats, null, null);
+    }
+
+    @Test
+    public void testPublish() throws PublishFailedException {
+        PubControlClient client = new PubControlClient(uri());
+        client.publish(Arrays.asList("chan"), item("hello"));
+        assertEquals(this.bodies.size(), 1);
+        assertTrue(this.bodies.get(0).contains("\"channel\":\"chan\""));
+        assertTrue(this.bodies.get(0).contains("\"body\":\"hello\""));
+    }
+
+    @Test
+    public void testPublishMultipleChannels() throws PublishFailedException {
+        PubControlClient client = new PubControlClient(uri());
+        client.publish(Arrays.asList("a", "b"), item("h\u00e9llo \u2603"));
+        JsonArray items = new JsonParser().parse(this.bodies.get(0))
+                .getAsJsonObject().getAsJsonArray("items");
+        assertEquals(items.size(), 2);
+        for (int n = 0; n < 2; n++) {
+            JsonObject export = items.get(n).getAsJsonObject();
+            assertEquals(export.get("channel").getAsString(), n == 0 ? "a" : "b");
+            assertEquals(export.getAsJsonObject("http-response").get("body")
+                    .getAsString(), "h\u00e9llo \u2603");
+        }
+    }
+
+    @Test
+    public void testPublishEmptyItem() throws PublishFailedException {
+        PubControlClient client = new PubControlClient(uri());
+        client.publish(Arrays.asList("a", "b"),
+                new Item(new ArrayList<Format>(), null, null));
+        assertEquals(this.bodies.get(0),
+                "{\"items\":[{\"channel\":\"a\"},{\"channel\":\"b\"}]}");
+    }
+
+    @Test
+    public void testPublishReusesConnection() throws PublishFailedException {
+        PubControlClient client = new PubControlClient(uri());
+        for (int n = 0; n < 5; n++)
+            client.publish(Arrays.asList("chan"), item("hello"));
+        assertEquals(this.bodies.size(), 5);
+        assertEquals(this.remotePorts.size(), 1);
+    }
+
+    @Test
+    public void testTransportIdleTimeout() throws Exception {
+        HttpClientTransport transport = new HttpClientTransport();
+        transport.setIdleTimeout(Duration.ofMillis(500));
+        PubControlClient client = new PubControlClient(uri(), transport);
+        client.publish(Arrays.asList("chan"), item("hello"));
+        client.publish(Arrays.asList("chan"), item("hello"));
+        assertEquals(this.remotePorts.size(), 1);
+        // The idle client is normally evicted during the first pause, but a
+        // busy machine may delay the eviction to a later one.
+        long deadline = System.nanoTime() + 10000 * 1000000L;
+        while (this.remotePorts.size() < 2 && System.nanoTime() < deadline) {
+            Thread.sleep(1000);
+            client.publish(Arrays.asList("chan"), item("hello"));
+        }
+        assertEquals(this.remotePorts.size(), 2);
+    }
+
+    @Test
+    public void testJwtAuthHeaderCached() throws PublishFailedException {
+        PubControlClient client = new PubControlClient(uri());
+        Map<String, Object> claims = new HashMap<String, Object>();
+        claims.put("iss", "realm");
+        client.setAuthJwt(claims, "key".getBytes());
+        client.publish(Arrays.asList("chan"), item("hello"));
+        client.publish(Arrays.asList("chan"), item("hello"));
+        assertTrue(this.authHeaders.get(0).startsWith("Bearer "));
+        assertEquals(this.authHeaders.get(0), this.authHeaders.get(1));
+        client.setAuthJwt(claims, "key2".getBytes());
+        client.publish(Arrays.asList("chan"), item("hello"));
+        assertNotEquals(this.authHeaders.get(0), this.authHeaders.get(2));
+    }
+
+    @Test(expected=PublishFailedException.class)
+    public void testPublishFailure() throws PublishFailedException {
+        this.responseCode = 500;
+        PubControlClient client = new PubControlClient(uri());
+        client.publish(Arrays.asList("chan"), item("hello"));
+    }
+
+    @Test(expected=PublishFailedException.class)
+    public void testPublishBadUri() throws PublishFailedException {
+        PubControlClient client = new PubControlClient(null);
+        client.publish(Arrays.asList("chan"), item("hello"));
+    }
+
+    @Test
+    public void testPublishAsync() {
+        PubControlClient client = new PubControlClient(uri());
+        Callback callback = new Callback();
+        client.publishAsync(Arrays.asList("chan"), item("hello"), callback);
+        client.finish();
+        assertEquals(callback.callbackResult, true);
+        assertEquals(this.bodies.size(), 1);
+    }
+
+    @Test
+    public void testPublishAsyncConcurrency() {
+        this.responseDelayMillis = 200;
+        PubControlClient client = new PubControlClient(uri());
+        client.setAsyncConcurrency(4);
+        List<Callback> callbacks = new ArrayList<Callback>();
+        for (int n = 0; n < 4; n++) {
+            Callback callback = new Callback();
+            callbacks.add(callback);
+            client.publishAsync(Arrays.asList("chan" + n), item("hello"), callback);
+        }
+        client.finish();
+        for (Callback callback : callbacks)
+            assertEquals(callback.callbackResult, true);
+        int published = 0;
+        for (String body : this.bodies)
+            published += body.split("\"channel\"").length - 1;
+        assertEquals(published, 4);
+        assertTrue(this.maxInFlight.get() > 1);
+    }
+
+    @Test
+    public void testHttp2TransportVersion() throws PublishFailedException {
+        HttpClientTransport http2 = HttpClientTransport.newHttp2Transport();
+        assertEquals(http2.getVersion(), java.net.http.HttpClient.Version.HTTP_2);
+        assertEquals(new HttpClientTransport().getVersion(),
+                java.net.http.HttpClient.Version.HTTP_1_1);
+        // The stub endpoint only speaks HTTP/1.1, so the HTTP/2 transport can
+        // only be seen offering the h2c upgrade before falling back.
+        new PubControlClient(uri(), http2).publish(Arrays.asList("chan"),
+                item("hello"));
+        new PubControlClient(uri()).publish(Arrays.asList("chan"), item("hello"));
+        assertEquals(this.upgradeHeaders, Arrays.asList("h2c", null));
+    }
+
+    @Test
+    public void testHttp2TransportStreamLimit() {
+        // The stream limit is enforced by the transport whichever version is
+        // negotiated, so it also holds against the HTTP/1.1 stub endpoint.
+        this.responseDelayMillis = 200;
+        PubControlClient client = new PubControlClient(uri(),
+                HttpClientTransport.newHttp2Transport(null, null, 2));
+        client.setAsyncConcurrency(6);
+        List<Callback> callbacks = new ArrayList<Callback>();
+        for (int n = 0; n < 6; n++) {
+            Callback callback = new Callback();
+            callbacks.add(callback);
+            client.publishAsync(Arrays.asList("chan" + n), item("hello"), callback);
+        }
+        client.finish();
+        for (Callback callback : callbacks)
+            assertEquals(callback.callbackResult, true);
+        assertTrue(this.maxInFlight.get() <= 2);
+    }
+
+    @Test
+    public void testPublishAsyncQueueFull() throws InterruptedException {
+        this.responseDelayMillis = 300;
+        PubControlClient client = new PubControlClient(uri());
+        client.setAsyncQueueCapacity(1, OverflowPolicy.FAIL);
+        List<Callback> callbacks = new ArrayList<Callback>();
+        for (int n = 0; n < 5; n++) {
+            Callback callback = new Callback();
+            callbacks.add(callback);
+            client.publishAsync(Arrays.asList("chan"), item("hello"), callback);
+            assertTrue(client.getAsyncQueueSize() <= 1);
+            while (n == 0 && client.getAsyncQueueSize() > 0)
+                Thread.sleep(5);
+        }
+        assertEquals(callbacks.get(4).callbackMessage,
+                "failed to publish: queue full");
+        client.finish();
+        assertEquals(client.getAsyncQueueSize(), 0);
+        assertEquals(callbacks.get(0).callbackResult, true);
+    }
+
+    private PubControlClient gatedClient(final CountDownLatch arrived,
+            final CountDownLatch release, final List<String> sent) {
+        return new PubControlClient(uri(), new Transport() {
+            public TransportResponse send(java.net.URI uri, Map<String, String> headers,
+                    List<java.nio.ByteBuffer> body) throws IOException, InterruptedException {
+                StringBuilder content = new StringBuilder();
+                for (java.nio.ByteBuffer buffer : body)
+                    content.append(StandardCharsets.UTF_8.decode(buffer.duplicate()));
+                sent.add(content.toString());
+                arrived.countDown();
+                release.await(10, TimeUnit.SECONDS);
+                return new TransportResponse(200,
+                        Collections.<String, String>emptyMap(), "");
+            }
+        });
+    }
+
+    private boolean wasSent(List<String> sent, String body) {
+        for (String content : sent) {
+            if (content.contains("\"body\":\"" + body + "\""))
+                return true;
+        }
+        return false;
+    }
+
+    @Test(timeout=10000)
+    public void testPublishAsyncQueueBlock() throws Exception {
+        CountDownLatch arrived = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+        final PubControlClient client = gatedClient(arrived, release, sent);
+        client.setAsyncQueueCapacity(1, OverflowPolicy.BLOCK);
+        client.publishAsync(Arrays.asList("chan"), item("a"), null);
+        arrived.await();
+        client.publishAsync(Arrays.asList("chan"), item("b"), null);
+        final Callback callback = new Callback();
+        Thread blocked = new Thread(new Runnable() {
+            public void run() {
+                client.publishAsync(Arrays.asList("chan"), item("c"), callback);
+            }
+        });
+        blocked.start();
+        blocked.join(200);
+        assertTrue(blocked.isAlive());
+        assertEquals(client.getAsyncQueueSize(), 1);
+        release.countDown();
+        blocked.join();
+        client.finish();
+        assertEquals(callback.callbackResult, true);
+        assertTrue(wasSent(sent, "c"));
+    }
+
+    @Test(timeout=10000)
+    public void testPublishAsyncQueueBlockWithTimeout() throws Exception {
+        CountDownLatch arrived = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+        PubControlClient client = gatedClient(arrived, release, sent);
+        client.setAsyncQueueCapacity(1, OverflowPolicy.BLOCK_WITH_TIMEOUT,
+                java.time.Duration.ofMillis(100));
+        client.publishAsync(Arrays.asList("chan"), item("a"), null);
+        arrived.await();
+        Callback queued = new Callback();
+        client.publishAsync(Arrays.asList("chan"), item("b"), queued);
+        Callback timedOut = new Callback();
+        long start = System.nanoTime();
+        client.publishAsync(Arrays.asList("chan"), item("c"), timedOut);
+        assertTrue(System.nanoTime() - start >= 100 * 1000000L);
+        assertEquals(timedOut.callbackResult, false);
+        assertEquals(timedOut.callbackMessage,
+                "failed to publish: timed out waiting for queue");
+        release.countDown();
+        client.finish();
+        assertEquals(queued.callbackResult, true);
+        assertFalse(wasSent(sent, "c"));
+    }
+
+    @Test(timeout=10000)
+    public void testPublishAsyncQueueDropNewest() throws Exception {
+        CountDownLatch arrived = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+        PubControlClient client = gatedClient(arrived, release, sent);
+        client.setAsyncQueueCapacity(1, OverflowPolicy.DROP_NEWEST);
+        client.publishAsync(Arrays.asList("chan"), item("a"), null);
+        arrived.await();
+        Callback queued = new Callback();
+        client.publishAsync(Arrays.asList("chan"), item("b"), queued);
+        Callback dropped = new Callback();
+        client.publishAsync(Arrays.asList("chan"), item("c"), dropped);
+        assertEquals(dropped.callbackResult, false);
+        assertEquals(dropped.callbackMessage,
+                "failed to publish: dropped from full queue");
+        release.countDown();
+        client.finish();
+        assertEquals(queued.callbackResult, true);
+        assertTrue(wasSent(sent, "b"));
+        assertFalse(wasSent(sent, "c"));
+    }
+
+    @Test(timeout=10000)
+    public void testPublishAsyncQueueDropOldest() throws Exception {
+        CountDownLatch arrived = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+        PubControlClient client = gatedClient(arrived, release, sent);
+        client.setAsyncQueueCapacity(1, OverflowPolicy.DROP_OLDEST);
+        client.publishAsync(Arrays.asList("chan"), item("a"), null);
+        arrived.await();
+        Callback dropped = new Callback();
+        client.publishAsync(Arrays.asList("chan"), item("b"), dropped);
+        Callback queued = new Callback();
+        client.publishAsync(Arrays.asList("chan"), item("c"), queued);
+        assertEquals(dropped.callbackResult, false);
+        assertEquals(dropped.callbackMessage,
+                "failed to publish: dropped from full queue");
+        assertEquals(client.getAsyncQueueSize(), 1);
+        release.countDown();
+        client.finish();
+        assertEquals(queued.callbackResult, true);
+        assertFalse(wasSent(sent, "b"));
+        assertTrue(wasSent(sent, "c"));
+    }
+
+    @Test
+    public void testPublishAsyncLinger() throws Exception {
+        PubControlClient client = new PubControlClient(uri());
+        client.setAsyncBatching(100, 1024 * 1024, java.time.Duration.ofSeconds(1));
+        List<CompletableFuture<PublishResult>> futures =
+                new ArrayList<CompletableFuture<PublishResult>>();
+        for (int n = 0; n < 5; n++)
+            futures.add(client.publishAsync(Arrays.asList("chan" + n), item("hello")));
+        // The batch is sent once the linger time elapsed, without finish.
+        for (CompletableFuture<PublishResult> future : futures)
+            assertEquals(future.get(10, TimeUnit.SECONDS).isSuccess(), true);
+        assertEquals(this.bodies.size(), 1);
+        client.finish();
+    }
+
+    @Test(timeout=10000)
+    public void testPublishAsyncThrowingCallback() throws Exception {
+        PubControlClient client = new PubControlClient(uri());
+        client.setAsyncBatching(3, 1024 * 1024, java.time.Duration.ofSeconds(10));
+        client.publishAsync(Arrays.asList("chan0"), item("hello"),
+                new PublishCallback() {
+                    public void completed(boolean result, String errorMessage) {
+                        throw new IllegalStateException("callback failed");
+                    }
+                });
+        Callback callback = new Callback();
+        client.publishAsync(Arrays.asList("chan1"), item("hello"), callback);
+        CompletableFuture<PublishResult> future = client.publishAsync(
+                Arrays.asList("chan2"), item("hello"));
+        assertEquals(future.get(5, TimeUnit.SECONDS).isSuccess(), true);
+        client.finish();
+        assertEquals(this.bodies.size(), 1);
+        assertEquals(callback.callbackResult, true);
+    }
+
+    @Test
+    public void testPublishAsyncBatchMaxItems() {
+        PubControlClient client = new PubControlClient(uri());
+        client.setAsyncBatching(2, 1024 * 1024, java.time.Duration.ofSeconds(10));
+        for (int n = 0; n < 5; n++)
+            client.publishAsync(Arrays.asList("chan" + n), item("hello"), null);
+        client.finish();
+        assertEquals(this.bodies.size(), 3);
+    }
+
+    @Test
+    public void testPublishAsyncFuture() throws Exception {
+        PubControlClient client = new PubControlClient(uri());
+        final List<String> threadNames = new ArrayList<String>();
+        PublishResult result = client.publishAsync(Arrays.asList("chan"), item("hello"))
+                .thenApply(new java.util.function.Function<PublishResult, PublishResult>() {
+                    public PublishResult apply(PublishResult result) {
+                        threadNames.add(Thread.currentThread().getName());
+                        return result;
+                    }
+                }).get(5, TimeUnit.SECONDS);
+        assertEquals(result.isSuccess(), true);
+        assertEquals(result.getEndpointResults().get(0).getStatusCode(), 200);
+        assertFalse(threadNames.get(0).startsWith("pubcontrol-publish"));
+        this.responseCode = 503;
+        result = client.publishAsync(Arrays.asList("chan"), item("hello"))
+                .get(5, TimeUnit.SECONDS);
+        assertEquals(result.isSuccess(), false);
+        assertEquals(result.getEndpointResults().get(0).getStatusCode(), 503);
+        assertTrue(result.getEndpointResults().get(0).getCause()
+                instanceof PublishFailedException);
+        client.finish();
+    }
+
+    @Test
+    public void testPublishRetry() throws PublishFailedException {
+        this.failuresBeforeSuccess.set(2);
+        PubControlClient client = new PubControlClient(uri());
+        client.setRetryPolicy(new RetryPolicy(3, java.time.Duration.ofMillis(10),
+                java.time.Duration.ofMillis(50)));
+        client.publish(Arrays.asList("chan"), item("hello"));
+        assertEquals(this.bodies.size(), 3);
+    }
+
+    @Test(timeout=10000)
+    public void testPublishRetryAfterCapped() throws PublishFailedException {
+        this.failuresBeforeSuccess.set(1);
+        this.retryAfter = "86400";
+        PubControlClient client = new PubControlClient(uri());
+        client.setRetryPolicy(new RetryPolicy(2, Duration.ofMillis(10),
+                Duration.ofMillis(50)));
+        client.publish(Arrays.asList("chan"), item("hello"));
+        assertEquals(this.bodies.size(), 2);
+    }
+
+    @Test
+    public void testPublishAsyncRetryResignsJwt() {
+        this.failuresBeforeSuccess.set(1);
+        this.retryAfter = "2";
+        PubControlClient client = new PubControlClient(uri());
+        Map<String, Object> claims = new HashMap<String, Object>();
+        claims.put("iss", "realm");
+        client.setAuthJwt(claims, "key".getBytes());
+        client.setAuthJwtRefreshMargin(Duration.ofMinutes(61));
+        client.setRetryPolicy(new RetryPolicy(2, Duration.ofMillis(10),
+                Duration.ofSeconds(2)));
+        Callback callback = new Callback();
+        client.publishAsync(Arrays.asList("chan"), item("hello"), callback);
+        client.finish();
+        assertEquals(callback.callbackResult, true);
+        assertEquals(this.authHeaders.size(), 2);
+        assertNotEquals(this.authHeaders.get(0), this.authHeaders.get(1));
+    }
+
+    @Test(expected=PublishFailedException.class)
+    public void testPublishRetryExhausted() throws PublishFailedException {
+        this.failuresBeforeSuccess.set(3);
+        PubControlClient client = new PubControlClient(uri());
+        client.setRetryPolicy(new RetryPolicy(3, java.time.Duration.ofMillis(10),
+                java.time.Duration.ofMillis(50)));
+        client.publish(Arrays.asList("chan"), item("hello"));
+    }
+
+    @Test
+    public void testPublishAsyncRetry() {
+        this.failuresBeforeSuccess.set(2);
+        PubControlClient client = new PubControlClient(uri());
+        client.setRetryPolicy(new RetryPolicy(3, java.time.Duration.ofMillis(10),
+                java.time.Duration.ofMillis(50)));
+        Callback callback = new Callback();
+        client.publishAsync(Arrays.asList("chan"), item("hello"), callback);
+        client.finish();
+        assertEquals(callback.callbackResult, true);
+        assertEquals(this.bodies.size(), 3);
+    }
+
+    @Test
+    public void testAsyncOrderingWithRetry() {
+        this.responseDelayMillis = 50;
+        this.failuresBeforeSuccess.set(1);
+        PubControlClient client = new PubControlClient(uri());
+        client.setRetryPolicy(new RetryPolicy(3, java.time.Duration.ofMillis(100),
+                java.time.Duration.ofMillis(100)));
+        client.setAsyncConcurrency(4);
+        client.setAsyncBatching(1, 1024 * 1024, java.time.Duration.ZERO);
+        client.setAsyncOrdering(true);
+        List<Callback> callbacks = new ArrayList<Callback>();
+        for (int n = 0; n < 5; n++) {
+            for (String channel : Arrays.asList("a", "b")) {
+                Callback callback = new Callback();
+                callbacks.add(callback);
+                client.publishAsync(Arrays.asList(channel), item(channel + n),
+                        callback);
+            }
+        }
+        client.finish();
+        for (Callback callback : callbacks)
+            assertEquals(callback.callbackResult, true);
+        assertEquals(this.bodies.size(), 11);
+        for (String channel : Arrays.asList("a", "b")) {
+            List<String> received = new ArrayList<String>();
+            for (String body : this.bodies) {
+                JsonObject export = new JsonParser().parse(body).getAsJsonObject()
+                        .getAsJsonArray("items").get(0).getAsJsonObject();
+                String value = export.getAsJsonObject("http-response")
+                        .get("body").getAsString();
+                if (export.get("channel").getAsString().equals(channel) &&
+                        (received.isEmpty() ||
+                        !received.get(received.size() - 1).equals(value)))
+                    received.add(value);
+            }
+            assertEquals(received, Arrays.asList(channel + 0, channel + 1,
+                    channel + 2, channel + 3, channel + 4));
+        }
+        assertTrue(this.maxInFlight.get() > 1);
+    }
+
+    @Test(timeout=20000)
+    public void testFinishWithTimeout() throws Exception {
+        this.requestArrived = new CountDownLatch(1);
+        this.responseGate = new CountDownLatch(1);
+        PubControlClient client = new PubControlClient(uri());
+        client.setAsyncBatching(1, 1024 * 1024, java.time.Duration.ZERO);
+        List<Callback> callbacks = new ArrayList<Callback>();
+        for (int n = 0; n < 5; n++) {
+            Callback callback = new Callback();
+            callbacks.add(callback);
+            client.publishAsync(Arrays.asList("chan"), item("hello" + n), callback);
+        }
+        this.requestArrived.await();
+        long start = System.nanoTime();
+        ShutdownResult result;
+        try {
+            result = client.finish(java.time.Duration.ofMillis(300));
+        } finally {
+            this.responseGate.countDown();
+        }
+        assertTrue(System.nanoTime() - start < 5000 * 1000000L);
+        assertEquals(result.isComplete(), false);
+        assertEquals(result.getFlushedCount(), 0);
+        assertEquals(result.getAbandonedCount(), 4);
+        assertEquals(result.getInFlightCount(), 1);
+        assertEquals(result.getAbandoned().size(), 4);
+        for (int n = 0; n < 4; n++) {
+            Publication publication = result.getAbandoned().get(n);
+            assertEquals(publication.getChannels(), Arrays.asList("chan"));
+            assertEquals(publication.getUri(), uri());
+            assertEquals(publication.getItem().export().toString(),
+                    item("hello" + (n + 1)).export().toString());
+        }
+        for (int n = 1; n < 5; n++) {
+            assertEquals(callbacks.get(n).callbackResult, false);
+            assertEquals(callbacks.get(n).callbackMessage,
+                    "failed to publish: abandoned on shutdown");
+        }
+
+        this.responseDelayMillis = 0;
+        client.publishAsync(Arrays.asList("chan"), item("hello"), null);
+        result = client.finish(java.time.Duration.ofSeconds(5));
+        assertEquals(result.isComplete(), true);
+        assertEquals(result.getFlushedCount(), 2);
+        assertEquals(callbacks.get(0).callbackResult, true);
+
+        this.responseDelayMillis = 1000;
+        for (int n = 0; n < 3; n++)
+            client.publishAsync(Arrays.asList("chan"), item("hello"), null);
+        result = client.shutdownNow();
+        assertEquals(result.getAbandonedCount() + result.getInFlightCount(), 3);
+        assertTrue(result.getAbandonedCount() >= 2);
+        client.finish();
+    }
+
+    @Test
+    public void testCircuitBreaker() throws Exception {
+        this.responseCode = 503;
+        PubControlClient client = new PubControlClient(uri());
+        CircuitBreaker breaker = new CircuitBreaker(2, java.time.Duration.ofMillis(200));
+        final List<CircuitState> transitions =
+                Collections.synchronizedList(new ArrayList<CircuitState>());
+        breaker.setListener(new CircuitBreakerListener() {
+            public void stateChanged(String uri, CircuitState previous,
+                    CircuitState current) {
+                transitions.add(current);
+            }
+        });
+        client.setCircuitBreaker(breaker);
+        for (int n = 0; n < 4; n++) {
+            try {
+                client.publish(Arrays.asList("chan"), item("hello"));
+                fail();
+            } catch (PublishFailedException exception) { }
+        }
+        assertEquals(this.bodies.size(), 2);
+        assertEquals(client.getCircuitState(), CircuitState.OPEN);
+        Thread.sleep(300);
+        this.responseCode = 200;
+        client.publish(Arrays.asList("chan"), item("hello"));
+        assertEquals(this.bodies.size(), 3);
+        assertEquals(client.getCircuitState(), CircuitState.CLOSED);
+        assertEquals(transitions, Arrays.asList(CircuitState.OPEN,
+                CircuitState.HALF_OPEN, CircuitState.CLOSED));
+    }
+
+    @Test(timeout=10000)
+    public void testCircuitBreakerLateCompletion() throws Exception {
+        final CountDownLatch lateArrived = new CountDownLatch(1);
+        final CountDownLatch lateRelease = new CountDownLatch(1);
+        final CountDownLatch trialArrived = new CountDownLatch(1);
+        final CountDownLatch trialRelease = new CountDownLatch(1);
+        final PubControlClient client = new PubControlClient(uri(), new Transport() {
+            public TransportResponse send(java.net.URI uri, Map<String, String> headers,
+                    List<java.nio.ByteBuffer> body) throws IOException, InterruptedException {
+                StringBuilder content = new StringBuilder();
+                for (java.nio.ByteBuffer buffer : body)
+                    content.append(StandardCharsets.UTF_8.decode(buffer.duplicate()));
+                int code = 503;
+                if (content.indexOf("late") >= 0) {
+                    lateArrived.countDown();
+                    lateRelease.await();
+                    code = 200;
+                } else if (content.indexOf("trial") >= 0) {
+                    trialArrived.countDown();
+                    trialRelease.await();
+                }
+                return new TransportResponse(code,
+                        Collections.<String, String>emptyMap(), "");
+            }
+        });
+        client.setCircuitBreaker(new CircuitBreaker(1, java.time.Duration.ofMillis(50)));
+        Thread late = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    client.publish(Arrays.asList("chan"), item("late"));
+                } catch (PublishFailedException exception) { }
+            }
+        });
+        late.start();
+        lateArrived.await();
+        try {
+            client.publish(Arrays.asList("chan"), item("fail"));
+            fail();
+        } catch (PublishFailedException exception) { }
+        assertEquals(client.getCircuitState(), CircuitState.OPEN);
+        Runnable publishTrial = new Runnable() {
+            public void run() {
+                try {
+                    client.publish(Arrays.asList("chan"), item("trial"));
+                } catch (PublishFailedException exception) { }
+            }
+        };
+        // Publishes fail without being sent until the open duration elapsed
+        // and the breaker lets the trial through.
+        Thread trial = null;
+        do {
+            trial = new Thread(publishTrial);
+            trial.start();
+        } while (!trialArrived.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(client.getCircuitState(), CircuitState.HALF_OPEN);
+        lateRelease.countDown();
+        late.join();
+        assertEquals(client.getCircuitState(), CircuitState.HALF_OPEN);
+        trialRelease.countDown();
+        trial.join();
+        assertEquals(client.getCircuitState(), CircuitState.OPEN);
+    }
+
+    @Test
+    public void testCircuitBreakerFailureRate() {
+        PubControlClient client = new PubControlClient(uri());
+        client.setCircuitBreaker(new CircuitBreaker(0, 0.5, 4,
+                java.time.Duration.ofSeconds(10)));
+        Callback callback = new Callback();
+        for (int n = 0; n < 4; n++) {
+            this.responseCode = n % 2 == 0 ? 500 : 200;
+            client.publishAsync(Arrays.asList("chan"), item("hello"), callback);
+            client.finish();
+        }
+        assertEquals(client.getCircuitState(), CircuitState.OPEN);
+        client.publishAsync(Arrays.asList("chan"), item("hello"), callback);
+        client.finish();
+        assertEquals(callback.callbackResult, false);
+        assertEquals(callback.callbackMessage, "failed to publish: circuit open");
+        assertEquals(this.bodies.size(), 4);
+    }
+
+    @Test
+    public void testAsyncSpoolRecovery() throws Exception {
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("spool");
+        final CountDownLatch release = new CountDownLatch(1);
+        PubControlClient crashed = new PubControlClient(uri(), new Transport() {
+            public TransportResponse send(java.net.URI uri, Map<String, String> headers,
+                    List<java.nio.ByteBuffer> body) throws IOException, InterruptedException {
+                release.await();
+                throw new IOException("crashed");
+            }
+        });
+        PublishSpool spool = new PublishSpool(dir, 256);
+        crashed.setAsyncSpool(spool);
+        for (int n = 0; n < 5; n++)
+            crashed.publishAsync(Arrays.asList("chan"), item("hello" + n), null);
+        assertEquals(spool.getPendingCount(), 5);
+        spool.close();
+        java.nio.file.Path stray = dir.resolve("spool-x.log");
+        java.nio.file.Files.write(stray, new byte[] { 1, 2, 3 });
+
+        PublishSpool recovered = new PublishSpool(dir, 256);
+        assertEquals(recovered.getPendingCount(), 5);
+        PubControlClient client = new PubControlClient(uri());
+        client.setAsyncSpool(recovered);
+        client.finish();
+        release.countDown();
+        assertEquals(recovered.getPendingCount(), 0);
+        String bodies = String.join("", this.bodies);
+        for (int n = 0; n < 5; n++)
+            assertTrue(bodies.contains("\"body\":\"hello" + n + "\""));
+        recovered.close();
+        assertEquals(new PublishSpool(dir, 256).getPendingCount(), 0);
+        assertTrue(java.nio.file.Files.exists(stray));
+    }
+
+    @Test
+    public void testPublishStats() throws Exception {
+        PubControlClient client = new PubControlClient(uri());
+        PublishStats stats = new PublishStats();
+        client.setMetrics(stats);
+        client.setRetryPolicy(new RetryPolicy(2, java.time.Duration.ofMillis(10),
+                java.time.Duration.ofMillis(10)));
+        this.failuresBeforeSuccess.set(1);
+        client.publish(Arrays.asList("chan"), item("hello"));
+        client.publishAsync(Arrays.asList("chan1", "chan2"), item("hello"), null);
+        client.finish();
+        assertEquals(stats.getUri(), uri());
+        assertEquals(stats.getQueuedCount(), 1);
+        assertEquals(stats.getRequestCount(), 3);
+        assertEquals(stats.getFailedRequestCount(), 1);
+        assertEquals(stats.getRetriedCount(), 1);
+        assertEquals(stats.getItemCount(), 4);
+        assertTrue(stats.getByteCount() > 0);
+        assertEquals(stats.getStatusCodeCounts().get(200), Long.valueOf(2));
+        assertEquals(stats.getStatusCodeCounts().get(503), Long.valueOf(1));
+        assertEquals(stats.getQueueTime().getCount(), 1);
+        assertEquals(stats.getRequestTime().getCount(), 3);
+        assertEquals(stats.getBatchItems().getMax(), 2);
+        javax.management.ObjectName name = stats.registerMBean("test");
+        try {
+            assertEquals(java.lang.management.ManagementFactory
+                    .getPlatformMBeanServer().getAttribute(name, "RequestCount"),
+                    Long.valueOf(3));
+        } finally {
+            java.lang.management.ManagementFactory.getPlatformMBeanServer()
+                    .unregisterMBean(name);
+        }
+    }
+
+    @Test
+    public void testAsyncCoalescing() throws Exception {
+        this.responseDelayMillis = 300;
+        PubControlClient client = new PubControlClient(uri());
+        client.setAsyncCoalescing(true);
+        List<Callback> callbacks = new ArrayList<Callback>();
+        for (int n = 1; n <= 4; n++) {
+            List<Format> formats = new ArrayList<Format>();
+            formats.add(new TestFormat("hello" + n));
+            Callback callback = new Callback();
+            callbacks.add(callback);
+            client.publishAsync(Arrays.asList("chan"), new Item(formats,
+                    Integer.toString(n), Integer.toString(n - 1)), callback);
+            if (n == 1)
+                Thread.sleep(100);
+        }
+        client.publishAsync(Arrays.asList("chan"), item("other"), "other", null);
+        client.finish();
+        assertEquals(this.bodies.size(), 2);
+        JsonArray items = new JsonParser().parse(this.bodies.get(1))
+                .getAsJsonObject().getAsJsonArray("items");
+        assertEquals(items.size(), 2);
+        JsonObject item = items.get(0).getAsJsonObject();
+        assertEquals(item.get("id").getAsString(), "4");
+        assertEquals(item.get("prev-id").getAsString(), "1");
+        for (Callback callback : callbacks)
+            assertEquals(callback.callbackResult, true);
+        assertEquals(callbacks.get(0).callbackMessage, null);
+        assertEquals(callbacks.get(1).callbackMessage, "coalesced");
+        assertEquals(callbacks.get(2).callbackMessage, "coalesced");
+        assertEquals(callbacks.get(3).callbackMessage, null);
+    }
+
+    @Test
+    public void testAsyncCoalescingSpooledItemSubclass() throws Exception {
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("spool");
+        final CountDownLatch release = new CountDownLatch(1);
+        PubControlClient crashed = new PubControlClient(uri(), new Transport() {
+            public TransportResponse send(java.net.URI uri, Map<String, String> headers,
+                    List<java.nio.ByteBuffer> body) throws IOException, InterruptedException {
+                release.await();
+                throw new IOException("crashed");
+            }
+        });
+        PublishSpool spool = new PublishSpool(dir, 256);
+        crashed.setAsyncSpool(spool);
+        crashed.setAsyncCoalescing(true);
+        for (int n = 1; n <= 3; n++) {
+            List<Format> formats = new ArrayList<Format>();
+            formats.add(new TestFormat("hello" + n));
+            crashed.publishAsync(Arrays.asList("chan"), new TaggedItem(formats,
+                    Integer.toString(n), Integer.toString(n - 1)), null);
+            while (n == 1 && crashed.getAsyncQueueSize() > 0)
+                Thread.sleep(5);
+        }
+        assertEquals(spool.getPendingCount(), 2);
+        spool.close();
+
+        PublishSpool recovered = new PublishSpool(dir, 256);
+        PubControlClient client = new PubControlClient(uri());
+        client.setAsyncSpool(recovered);
+        client.finish();
+        release.countDown();
+        recovered.close();
+        Map<String, JsonObject> items = new HashMap<String, JsonObject>();
+        for (String body : this.bodies) {
+            for (JsonElement item : new JsonParser().parse(body).getAsJsonObject()
+                    .getAsJsonArray("items"))
+                items.put(item.getAsJsonObject().get("id").getAsString(),
+                        item.getAsJsonObject());
+        }
+        assertEquals(items.keySet(), new HashSet<String>(Arrays.asList("1", "3")));
+        assertEquals(items.get("3").get("prev-id").getAsString(), "1");
+        assertEquals(items.get("3").get("tag").getAsString(), "tagged");
+    }
+
+    @Test
+    public void testDeduplication() throws Exception {
+        PubControlClient client = new PubControlClient(uri());
+        client.setDeduplication(10);
+        List<Format> formats = new ArrayList<Format>();
+        formats.add(new TestFormat("hello"));
+        Item item = new Item(formats, "id1", null);
+        client.publish(Arrays.asList("chan"), item);
+        client.publish(Arrays.asList("chan"), item);
+        client.publish(Arrays.asList("chan2"), item);
+        Callback callback = new Callback();
+        client.publishAsync(Arrays.asList("chan"), item, callback);
+        client.finish();
+        assertEquals(this.bodies.size(), 2);
+        assertEquals(callback.callbackResult, true);
+        assertEquals(callback.callbackMessage, "duplicate");
+        PublishResult result = client.publishAsync(Arrays.asList("chan"), item)
+                .get(5, TimeUnit.SECONDS);
+        assertEquals(result.getEndpointResults().get(0).isCoalesced(), true);
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        PubControlClient client = new PubControlClient(uri());
+        PublishStats stats = new PublishStats();
+        client.setMetrics(stats);
+        client.setCompression(Compression.GZIP, 1024);
+        StringBuilder body = new StringBuilder();
+        for (int n = 0; n < 5000; n++)
+            body.append("hello world ");
+        client.publish(Arrays.asList("chan"), item("small"));
+        client.publish(Arrays.asList("chan1", "chan2"), item(body.toString()));
+        client.setCompression(Compression.DEFLATE, 1024, 9);
+        client.publishAsync(Arrays.asList("chan"), item(body.toString()), null);
+        client.finish();
+        assertEquals(this.contentEncodings, Arrays.asList(null, "gzip", "deflate"));
+        assertTrue(this.bodies.get(0).contains("\"body\":\"small\""));
+        for (int n = 1; n < 3; n++) {
+            JsonArray items = new JsonParser().parse(this.bodies.get(n))
+                    .getAsJsonObject().getAsJsonArray("items");
+            assertEquals(items.get(0).getAsJsonObject().getAsJsonObject(
+                    "http-response").get("body").getAsString(), body.toString());
+        }
+        assertEquals(stats.getCompressedRequestCount(), 2);
+        assertTrue(stats.getCompressionRatio() > 10);
+    }
+
+    @Test
+    public void testAsyncBatchAuthChange() throws Exception {
+        this.responseDelayMillis = 200;
+        PubControlClient client = new PubControlClient(uri());
+        client.setAuthBearer("key1");
+        client.publishAsync(Arrays.asList("chan"), item("hello1"), null);
+        client.publishAsync(Arrays.asList("chan"), item("hello2"), null);
+        client.setAuthBearer("key2");
+        client.publishAsync(Arrays.asList("chan"), item("hello3"), null);
+        client.publishAsync(Arrays.asList("chan"), item("hello4"), null);
+        client.finish();
+        int published = 0;
+        for (int n = 0; n < this.bodies.size(); n++) {
+            String body = this.bodies.get(n);
+            String auth = this.authHeaders.get(n);
+            if (body.contains("hello1") || body.contains("hello2"))
+                assertEquals(auth, "Bearer key1");
+            if (body.contains("hello3") || body.contains("hello4"))
+                assertEquals(auth, "Bearer key2");
+            published += body.split("\"channel\"").length - 1;
+        }
+        assertEquals(published, 4);
+    }
+
+    @Test
+    public void testStreamingAndPreEncodedFormats() throws Exception {
+        List<Format> formats = new ArrayList<Format>();
+        formats.add(new TestStreamingFormat());
+        formats.add(new TestPreEncodedFormat());
+        formats.add(new TestFormat("hello"));
+        PubControlClient client = new PubControlClient(uri());
+        client.publish(Arrays.asList("a", "b"), new Item(formats, "1", null));
+        JsonArray items = new JsonParser().parse(this.bodies.get(0))
+                .getAsJsonObject().getAsJsonArray("items");
+        assertEquals(items.size(), 2);
+        for (int n = 0; n < 2; n++) {
+            JsonObject export = items.get(n).getAsJsonObject();
+            assertEquals(export.get("channel").getAsString(), n == 0 ? "a" : "b");
+            assertEquals(export.get("id").getAsString(), "1");
+            assertEquals(export.getAsJsonObject("json-object").get("text")
+                    .getAsString(), "<b>caf\u00e9</b>");
+            assertEquals(export.getAsJsonObject("http-stream").get("content")
+                    .getAsString(), "data");
+            assertEquals(export.getAsJsonObject("http-response").get("body")
+                    .getAsString(), "hello");
+        }
+    }
+
+    private static class TestStreamingFormat implements StreamingFormat {
+        public String name() {
+            return "json-object";
+        }
+
+        public Object export() {
+            Map<String, Object> map = new HashMap<String, Object>();
+            map.put("text", "<b>caf\u00e9</b>");
+            return map;
+        }
+
+        public void writeJson(JsonWriter writer) throws IOException {
+            writer.beginObject();
+            writer.name("text").value("<b>caf\u00e9</b>");
+            writer.endObject();
+        }
+    }
+
+    private static class TestPreEncodedFormat implements PreEncodedFormat {
+        private final ByteBuffer encoded = ByteBuffer.wrap(
+                "{\"content\":\"data\"}".getBytes(StandardCharsets.UTF_8));
+
+        public String name() {
+            return "http-stream";
+        }
+
+        public Object export() {
+            Map<String, Object> map = new HashMap<String, Object>();
+            map.put("content", "data");
+            return map;
+        }
+
+        public ByteBuffer getEncoded() {
+            return this.encoded;
+        }
+    }
+
+    @Test
+    public void testPublishProcessor() throws Exception {
+        this.responseDelayMillis = 20;
+        PubControlClient client = new PubControlClient(uri());
+        PublishProcessor processor = client.newPublishProcessor(4);
+        final AtomicLong requested = new AtomicLong();
+        final List<PublicationResult> results =
+                Collections.synchronizedList(new ArrayList<PublicationResult>());
+        final CountDownLatch completed = new CountDownLatch(1);
+        final Flow.Subscription[] downstream = new Flow.Subscription[1];
+        processor.subscribe(new Flow.Subscriber<PublicationResult>() {
+            public void onSubscribe(Flow.Subscription subscription) {
+                downstream[0] = subscription;
+            }
+
+            public void onNext(PublicationResult result) {
+                results.add(result);
+            }
+
+            public void onError(Throwable error) { }
+
+            public void onComplete() {
+                completed.countDown();
+            }
+        });
+        processor.onSubscribe(new Flow.Subscription() {
+            public void request(long n) {
+                requested.addAndGet(n);
+            }
+
+            public void cancel() { }
+        });
+        assertEquals(requested.get(), 4);
+        for (int n = 0; n < 4; n++)
+            processor.onNext(new Publication(Arrays.asList("chan"),
+                    item("hello" + n)));
+        Thread.sleep(300);
+        assertEquals(requested.get(), 4);
+        assertEquals(results.size(), 0);
+
+        downstream[0].request(Long.MAX_VALUE);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (requested.get() < 8 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(requested.get(), 8);
+        for (int n = 4; n < 8; n++)
+            processor.onNext(new Publication(Arrays.asList("chan"),
+                    item("hello" + n)));
+        processor.onComplete();
+        assertTrue(completed.await(5, TimeUnit.SECONDS));
+        assertEquals(results.size(), 8);
+        for (PublicationResult result : results)
+            assertTrue(result.isSuccess());
+        String bodies = String.join("", this.bodies);
+        for (int n = 0; n < 8; n++)
+            assertTrue(bodies.contains("\"body\":\"hello" + n + "\""));
+    }
+
+    private static class TaggedItem extends Item {
+        public TaggedItem(List<Format> formats, String id, String prevId) {
+            super(formats, id, prevId);
+        }
+
+        public Map<String, Object> export() {
+            Map<String, Object> out = super.export();
+            out.put("tag", "tagged");
+            return out;
+        }
+    }
+
+    private static class TestFormat implements Format {
+        private String body;
+
+        public TestFormat(String body) {
+            this.body = body;
+        }
+
+        public String name() {
+            return "http-response";
+        }
+
+        public Object export() {
+            Map<String, Object> map = new HashMap<String, Object>();
+            map.put("body", this.body);
+            return map;
+        }
+    }
+
+    private static class Callback implements PublishCallback {
+        public volatile boolean callbackResult = false;
+        public volatile String callbackMessage = null;
+
+        public void completed(boolean result, String errorMessage) {
+            this.callbackResult = result;
+            this.callbackMessage = errorMessage;
+        }
+    }
+}
@@ -0,0 +1,362 @@
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import com.sun.net.httpserver.*;
+import org.fanout.pubcontrol.*;
+
+public class PubControlTest {
+    private List<HttpServer> servers = new ArrayList<HttpServer>();
+
+    @After
+    public void tearDown() {
+        for (HttpServer server : this.servers)
+            server.stop(0);
+    }
+
+    private String startServer(final int responseCode, final long delayMillis)
+            throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/publish/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                while (in.read() >= 0) { }
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException exception) { }
+                exchange.sendResponseHeaders(responseCode, -1);
+                exchange.close();
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        this.servers.add(server);
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    private String startServer(final int responseCode, final CountDownLatch arrived,
+            final CountDownLatch release) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/publish/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                while (in.read() >= 0) { }
+                if (arrived != null)
+                    arrived.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException exception) { }
+                exchange.sendResponseHeaders(responseCode, -1);
+                exchange.close();
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        this.servers.add(server);
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    private Item item() {
+        List<Format> formats = new ArrayList<Format>();
+        formats.add(new TestFormat());
+        return new Item(formats, null, null);
+    }
+
+    @Test
+    public void testPublishParallel() throws IOException {
+        // Each server only responds once all three requests have arrived, so
+        // the publish can only succeed if the clients are published to
+        // concurrently.
+        CountDownLatch arrived = new CountDownLatch(3);
+        PubControl pub = new PubControl(null);
+        pub.addClient(new PubControlClient(startServer(200, arrived, arrived)));
+        pub.addClient(new PubControlClient(startServer(500, arrived, arrived)));
+        pub.addClient(new PubControlClient(startServer(200, arrived, arrived)));
+        PublishResult result = pub.publishParallel(Arrays.asList("chan"), item(),
+                Duration.ofSeconds(5));
+        assertEquals(arrived.getCount(), 0);
+        assertEquals(result.isSuccess(), false);
+        assertEquals(result.getEndpointResults().size(), 3);
+        assertEquals(result.getFailures().size(), 1);
+        assertEquals(result.getEndpointResults().get(0).getStatusCode(), 200);
+        assertEquals(result.getEndpointResults().get(1).getStatusCode(), 500);
+        assertEquals(result.getEndpointResults().get(2).isSuccess(), true);
+    }
+
+    @Test
+    public void testPublishParallelTimeout() throws IOException {
+        // The second server holds its response until after publishParallel
+        // has returned, so it can only be reported as timed out.
+        CountDownLatch release = new CountDownLatch(1);
+        PubControl pub = new PubControl(null);
+        pub.addClient(new PubControlClient(startServer(200, 0)));
+        pub.addClient(new PubControlClient(startServer(200, null, release)));
+        try {
+            PublishResult result = pub.publishParallel(Arrays.asList("chan"),
+                    item(), Duration.ofMillis(1500));
+            assertEquals(result.getEndpointResults().get(0).isSuccess(), true);
+            assertEquals(result.getEndpointResults().get(1).isSuccess(), false);
+            assertEquals(result.getFirstErrorMessage(),
+                    "failed to publish: timed out");
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testPublishAsyncFuture() throws Exception {
+        PubControl pub = new PubControl(null);
+        pub.addClient(new PubControlClient(startServer(200, 0)));
+        pub.addClient(new PubControlClient(startServer(500, 0)));
+        PublishResult result = pub.publishAsync(Arrays.asList("chan"), item())
+                .get(5, TimeUnit.SECONDS);
+        assertEquals(result.isSuccess(), false);
+        assertEquals(result.getEndpointResults().size(), 2);
+        assertEquals(result.getEndpointResults().get(0).isSuccess(), true);
+        assertEquals(result.getEndpointResults().get(1).getStatusCode(), 500);
+        pub.finish();
+    }
+
+    @Test
+    public void testSharding() throws Exception {
+        PubControl pub = new PubControl(null);
+        pub.setSharding(true);
+        List<PubControlClient> clients = new ArrayList<PubControlClient>();
+        for (int n = 0; n < 3; n++) {
+            PubControlClient client = new PubControlClient(startServer(200, 0));
+            clients.add(client);
+            pub.addClient(client);
+        }
+        List<String> channels = new ArrayList<String>();
+        for (int n = 0; n < 300; n++)
+            channels.add("chan" + n);
+        Map<String, PubControlClient> owners = new HashMap<String, PubControlClient>();
+        Map<PubControlClient, Integer> counts = new HashMap<PubControlClient, Integer>();
+        for (String channel : channels) {
+            PubControlClient owner = pub.getClientForChannel(channel);
+            owners.put(channel, owner);
+            Integer count = counts.get(owner);
+            counts.put(owner, count == null ? 1 : count + 1);
+        }
+        assertEquals(counts.size(), 3);
+        for (int count : counts.values())
+            assertTrue(count > 50);
+        PublishResult result = pub.publishParallel(channels, item(),
+                Duration.ofSeconds(5));
+        assertEquals(result.isSuccess(), true);
+        assertEquals(result.getEndpointResults().size(), 3);
+        result = pub.publishParallel(Arrays.asList("chan0"), item(),
+                Duration.ofSeconds(5));
+        assertEquals(result.getEndpointResults().size(), 1);
+        assertEquals(result.getEndpointResults().get(0).getUri(),
+                owners.get("chan0").getUri());
+
+        pub.removeClient(clients.get(2));
+        for (String channel : channels) {
+            PubControlClient owner = pub.getClientForChannel(channel);
+            assertTrue(owner == clients.get(0) || owner == clients.get(1));
+            if (owners.get(channel) != clients.get(2))
+                assertSame(owner, owners.get(channel));
+        }
+        pub.setSharding(false);
+        assertNull(pub.getClientForChannel("chan0"));
+        pub.finish();
+    }
+
+    @Test
+    public void testReloadConfig() throws Exception {
+        String uri1 = startServer(200, 200);
+        String uri2 = startServer(200, 0);
+        String uri3 = startServer(200, 0);
+        PubControl pub = new PubControl(Arrays.asList(config(uri1, null),
+                config(uri2, null)));
+        List<PubControlClient> before = pub.getClients();
+        assertEquals(before.size(), 2);
+        final List<Boolean> results =
+                Collections.synchronizedList(new ArrayList<Boolean>());
+        for (int n = 0; n < 3; n++) {
+            before.get(0).publishAsync(Arrays.asList("chan"), item(),
+                    new PublishCallback() {
+                        public void completed(boolean result, String message) {
+                            results.add(result);
+                        }
+                    });
+        }
+
+        pub.reloadConfig(Arrays.asList(config(uri2, "key"), config(uri3, null)));
+        List<PubControlClient> after = pub.getClients();
+        assertEquals(after.size(), 2);
+        assertSame(after.get(0), before.get(1));
+        assertEquals(after.get(1).getUri(), uri3);
+        assertEquals(before.size(), 2);
+        PublishResult result = pub.publishParallel(Arrays.asList("chan"), item(),
+                Duration.ofSeconds(5));
+        assertEquals(result.isSuccess(), true);
+        assertEquals(result.getEndpointResults().size(), 2);
+        pub.finish();
+        assertEquals(results, Arrays.asList(true, true, true));
+
+        pub.publishAsync(Arrays.asList("chan"), item(), null);
+        pub.removeAllClients();
+        assertEquals(pub.getClients().size(), 0);
+        pub.finish();
+        assertEquals(after.get(0).getAsyncQueueSize(), 0);
+        assertEquals(after.get(1).getAsyncQueueSize(), 0);
+    }
+
+    @Test(timeout=20000)
+    public void testFinishWithTimeout() throws Exception {
+        PubControl pub = new PubControl(null);
+        CountDownLatch arrived = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        String uri2 = startServer(200, arrived, release);
+        String uri3 = startServer(200, arrived, release);
+        pub.addClient(new PubControlClient(startServer(200, 0)));
+        pub.addClient(new PubControlClient(uri2));
+        pub.addClient(new PubControlClient(uri3));
+        pub.publishAsync(Arrays.asList("chan"), item(), null);
+        arrived.await();
+        pub.publishAsync(Arrays.asList("chan"), item(), null);
+        long start = System.nanoTime();
+        ShutdownResult result;
+        try {
+            result = pub.finish(Duration.ofMillis(500));
+        } finally {
+            release.countDown();
+        }
+        assertTrue(System.nanoTime() - start < 5000 * 1000000L);
+        assertEquals(result.isComplete(), false);
+        assertEquals(result.getInFlightCount(), 2);
+        assertEquals(result.getAbandonedCount(), 2);
+        assertEquals(result.getAbandoned().size(), 2);
+        Set<String> uris = new HashSet<String>();
+        for (Publication publication : result.getAbandoned())
+            uris.add(publication.getUri());
+        assertEquals(uris, new HashSet<String>(Arrays.asList(uri2, uri3)));
+        pub.finish();
+    }
+
+    @Test(timeout=10000)
+    public void testFinishWithTimeoutStalledExecutor() throws Exception {
+        CountDownLatch arrived = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        String uri = startServer(200, arrived, release);
+        PubControl pub = new PubControl(null);
+        pub.addClient(new PubControlClient(uri));
+        final List<Runnable> stalled = new ArrayList<Runnable>();
+        pub.setExecutor(new Executor() {
+            public void execute(Runnable runnable) {
+                stalled.add(runnable);
+            }
+        });
+        try {
+            pub.publishAsync(Arrays.asList("chan"), item(), null);
+            arrived.await();
+            pub.publishAsync(Arrays.asList("chan"), item(), null);
+            ShutdownResult result = pub.finish(Duration.ofMillis(100));
+            assertEquals(stalled.size(), 1);
+            assertEquals(result.getInFlightCount(), 1);
+            assertEquals(result.getAbandonedCount(), 1);
+            assertEquals(result.getAbandoned().get(0).getUri(), uri);
+        } finally {
+            release.countDown();
+        }
+        pub.finish();
+    }
+
+    @Test
+    public void testFinishWithTimeoutStopsLingering() throws Exception {
+        PubControl pub = new PubControl(null);
+        for (int n = 0; n < 2; n++) {
+            PubControlClient client = new PubControlClient(startServer(200, 2000));
+            client.setAsyncBatching(10, 1024 * 1024, Duration.ofSeconds(10));
+            pub.addClient(client);
+        }
+        // Each endpoint takes 2 seconds, so the deadline is only met if the
+        // clients stop lingering and are sent to in parallel.
+        pub.publishAsync(Arrays.asList("chan"), item(), null);
+        ShutdownResult result = pub.finish(Duration.ofMillis(3500));
+        assertEquals(result.isComplete(), true);
+        assertEquals(result.getFlushedCount(), 2);
+    }
+
+    @Test
+    public void testSharedTransport() throws Exception {
+        final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+        Transport transport = new Transport() {
+            public TransportResponse send(URI uri, Map<String, String> headers,
+                    List<ByteBuffer> body) {
+                sent.add(uri.toString());
+                return new TransportResponse(200,
+                        Collections.<String, String>emptyMap(), "");
+            }
+        };
+        PubControl pub = new PubControl(Arrays.asList(
+                config("http://a.example", null)), transport);
+        pub.reloadConfig(Arrays.asList(config("http://a.example", null),
+                config("http://b.example", null)));
+        pub.publish(Arrays.asList("chan"), item());
+        assertEquals(sent, Arrays.asList("http://a.example/publish/",
+                "http://b.example/publish/"));
+    }
+
+    @Test
+    public void testReloadConfigKeepsUnchangedAuth() throws Exception {
+        final List<String> auths = Collections.synchronizedList(new ArrayList<String>());
+        Transport transport = new Transport() {
+            public TransportResponse send(URI uri, Map<String, String> headers,
+                    List<ByteBuffer> body) {
+                auths.add(headers.get("Authorization"));
+                return new TransportResponse(200,
+                        Collections.<String, String>emptyMap(), "");
+            }
+        };
+        PubControl pub = new PubControl(Arrays.asList(
+                config("http://a.example", "token")), transport);
+        PubControlClient client = pub.getClients().get(0);
+        pub.publish(Arrays.asList("chan"), item());
+        client.setAuthBasic("user", "pass");
+        pub.reloadConfig(Arrays.asList(config("http://a.example", "token")));
+        assertSame(pub.getClients().get(0), client);
+        pub.publish(Arrays.asList("chan"), item());
+        pub.reloadConfig(Arrays.asList(config("http://a.example", "token2")));
+        pub.publish(Arrays.asList("chan"), item());
+        pub.reloadConfig(Arrays.asList(config("http://a.example", null)));
+        pub.publish(Arrays.asList("chan"), item());
+        assertEquals(auths.get(0), "Bearer token");
+        assertEquals(auths.get(1), Base64.getEncoder().encodeToString(
+                "user:pass".getBytes(java.nio.charset.StandardCharsets.UTF_8)));
+        assertEquals(auths.get(2), "Bearer token2");
+        assertNull(auths.get(3));
+    }
+
+    private Map<String, Object> config(String uri, String key) {
+        Map<String, Object> entry = new HashMap<String, Object>();
+        entry.put("uri", uri);
+        if (key != null)
+            entry.put("key", key);
+        return entry;
+    }
+
+    private static class TestFormat implements Format {
+        public String name() {
+            return "http-response";
+        }
+
+        public Object export() {
+            Map<String, Object> map = new HashMap<String, Object>();
+            map.put("body", "hello");
+            return map;
+        }
+    }
+}